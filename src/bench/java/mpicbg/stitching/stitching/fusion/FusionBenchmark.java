@@ -0,0 +1,183 @@
+package mpicbg.stitching.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compares the fusion throughput (pixels/second) of the per-pixel kernel and
+ * the scanline kernel of {@link Fusion} on synthetic 2d and 3d grids. It is
+ * not a test, run it with {@code mvn -Pbenchmark test-compile exec:java}.
+ */
+public class FusionBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(final String... args) {
+        final Random rnd = new Random(0);
+
+        benchmark("2d, 16-bit, average", grid2d(rnd, false), false);
+        benchmark("2d, 16-bit, linear blending", grid2d(rnd, false), true);
+        benchmark("2d, float, linear interpolation, linear blending",
+                grid2d(rnd, true), true);
+        benchmark("3d, 16-bit, average", grid3d(rnd), false);
+        benchmark("3d, 16-bit, linear blending", grid3d(rnd), true);
+    }
+
+    private static void benchmark(final String name, final Grid grid,
+            final boolean blending) {
+        final PixelFusion fusion =
+                blending ? new BlendingPixelFusion(grid.input)
+                        : new AveragePixelFusion();
+
+        final boolean scanline = Fusion.scanlineFusion;
+        try {
+            Fusion.scanlineFusion = false;
+            final double perPixel = run(grid, fusion);
+            Fusion.scanlineFusion = true;
+            final double rows = run(grid, fusion);
+
+            System.out.println(String.format(
+                    "%s: per-pixel %.1f Mpx/s, scanline %.1f Mpx/s (%.2fx)",
+                    name, perPixel / 1e6, rows / 1e6, rows / perPixel));
+        } finally {
+            Fusion.scanlineFusion = scanline;
+        }
+    }
+
+    /**
+     * @return the best throughput of several runs in pixels/second
+     */
+    private static double run(final Grid grid, final PixelFusion fusion) {
+        double best = 0;
+
+        for (int i = 0; i < RUNS; ++i) {
+            final Img<UnsignedShortType> out =
+                    new ArrayImgFactory<UnsignedShortType>().create(grid.size,
+                            new UnsignedShortType());
+
+            final long start = System.nanoTime();
+            Fusion.fuseBlock(out, grid.input, grid.offset, grid.models,
+                    fusion, false);
+            final long time = System.nanoTime() - start;
+
+            best = Math.max(best, out.size() / (time / 1e9));
+        }
+
+        return best;
+    }
+
+    private static Grid grid2d(final Random rnd, final boolean subpixel) {
+        final int tiles = 4, tileSize = 512, step = 460;
+        final Grid grid = new Grid(2);
+
+        for (int y = 0; y < tiles; ++y) {
+            for (int x = 0; x < tiles; ++x) {
+                final TranslationModel2D model = new TranslationModel2D();
+                if (subpixel) {
+                    model.set(x * step + rnd.nextDouble(), y * step
+                            + rnd.nextDouble());
+                } else {
+                    model.set(x * step, y * step);
+                }
+                grid.add(model, new long[] { tileSize, tileSize }, rnd,
+                        subpixel);
+            }
+        }
+
+        grid.finish();
+        return grid;
+    }
+
+    private static Grid grid3d(final Random rnd) {
+        final int tiles = 3, tileSize = 128, step = 115;
+        final Grid grid = new Grid(3);
+
+        for (int y = 0; y < tiles; ++y) {
+            for (int x = 0; x < tiles; ++x) {
+                final TranslationModel3D model = new TranslationModel3D();
+                model.set(x * step, y * step, 0);
+                grid.add(model, new long[] { tileSize, tileSize, 64 }, rnd,
+                        false);
+            }
+        }
+
+        grid.finish();
+        return grid;
+    }
+
+    private static class Grid {
+        final int numDimensions;
+        final ArrayList<ImageInterpolation<? extends RealType<?>>> input =
+                new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+        final ArrayList<InvertibleBoundable> models =
+                new ArrayList<InvertibleBoundable>();
+        final ArrayList<long[]> dims = new ArrayList<long[]>();
+        double[] offset;
+        long[] size;
+
+        Grid(final int numDimensions) {
+            this.numDimensions = numDimensions;
+        }
+
+        void add(final InvertibleBoundable model, final long[] dim,
+                final Random rnd, final boolean subpixel) {
+            if (subpixel) {
+                final Img<FloatType> img =
+                        new ArrayImgFactory<FloatType>().create(dim,
+                                new FloatType());
+                fill(img, rnd);
+                input.add(new ImageInterpolation<FloatType>(img,
+                        new NLinearInterpolatorFactory<FloatType>(), true));
+            } else {
+                final Img<UnsignedShortType> img =
+                        new ArrayImgFactory<UnsignedShortType>().create(dim,
+                                new UnsignedShortType());
+                fill(img, rnd);
+                input.add(new ImageInterpolation<UnsignedShortType>(img,
+                        new NearestNeighborInterpolatorFactory<UnsignedShortType>(),
+                        false));
+            }
+            models.add(model);
+            dims.add(dim);
+        }
+
+        void finish() {
+            final int[][] imgSizes = new int[dims.size()][numDimensions];
+            for (int i = 0; i < dims.size(); ++i) {
+                for (int d = 0; d < numDimensions; ++d) {
+                    imgSizes[i][d] = (int) dims.get(i)[d];
+                }
+            }
+
+            offset = new double[numDimensions];
+            final int[] intSize = new int[numDimensions];
+            Fusion.estimateBounds(offset, intSize, imgSizes, models,
+                    numDimensions);
+
+            size = new long[numDimensions];
+            for (int d = 0; d < numDimensions; ++d) {
+                size[d] = intSize[d];
+            }
+        }
+
+        private static <T extends RealType<T>> void fill(final Img<T> img,
+                final Random rnd) {
+            final Cursor<T> c = img.cursor();
+            while (c.hasNext()) {
+                c.next().setReal(rnd.nextInt(4096));
+            }
+        }
+    }
+}
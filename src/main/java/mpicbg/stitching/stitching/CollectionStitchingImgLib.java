@@ -1,23 +1,39 @@
 package mpicbg.stitching.stitching;
 
+import fiji.stacks.Hyperstack_rearranger;
+import ij.ImagePlus;
 import ij.gui.Roi;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.util.Util;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
+import mpicbg.stitching.stitching.fusion.ImageInterpolation;
 import mpicbg.stitching.utils.Log;
+import mpicbg.stitching.utils.Memory;
+import net.imagej.ImgPlus;
+import net.imagej.ops.OpService;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 public class CollectionStitchingImgLib {
 
     public static ArrayList<ImagePlusTimePoint> stitchCollection(
             final ArrayList<ImageCollectionElement> elements,
-            final StitchingParameters params) {
+            final StitchingParameters params, final OpService ops) {
         // the result
         final ArrayList<ImagePlusTimePoint> optimized;
 
@@ -32,90 +48,13 @@ public class CollectionStitchingImgLib {
             }
 
             // compute all compare pairs
-            // compute all matchings
-            final AtomicInteger ai = new AtomicInteger(0);
-
-            final int numThreads;
+            final long time = System.currentTimeMillis();
 
-            if (params.cpuMemChoice == 0) {
-                numThreads = 1;
-            } else {
-                numThreads = Runtime.getRuntime().availableProcessors();
+            if (!registerPairs(pairs, params, ops)) {
+                Log.error("Collection stitching failed");
+                return null;
             }
 
-            final Thread[] threads =
-                    SimpleMultiThreading.newThreads(numThreads);
-
-//            for (int ithread = 0; ithread < threads.length; ++ithread) {
-//                threads[ithread] = new Thread(new Runnable() {
-//                    @Override
-//                    public void run() {
-//                        final int myNumber = ai.getAndIncrement();
-//
-//                        for (int i = 0; i < pairs.size(); i++) {
-//                            if (i % numThreads == myNumber) {
-//                                final ComparePair pair = pairs.get(i);
-//
-//                                final long start = System.currentTimeMillis();
-//
-//                                // where do we approximately overlap?
-//                                final Roi roi1 =
-//                                        getROI(pair.getTile1().getElement(),
-//                                                pair.getTile2().getElement());
-//                                final Roi roi2 =
-//                                        getROI(pair.getTile2().getElement(),
-//                                                pair.getTile1().getElement());
-//
-//                                final PairWiseStitchingResult result =
-//                                        PairWiseStitchingImgLib.stitchPairwise(
-//                                                pair.getImagePlus1(),
-//                                                pair.getImagePlus2(), roi1,
-//                                                roi2, pair.getTimePoint1(),
-//                                                pair.getTimePoint2(), params);
-//                                if (result == null) {
-//                                    Log.error("Collection stitching failed");
-//                                    return;
-//                                }
-//
-//                                if (params.dimensionality == 2) {
-//                                    pair.setRelativeShift(new float[] {
-//                                            result.getOffset(0),
-//                                            result.getOffset(1) });
-//                                } else {
-//                                    pair.setRelativeShift(new float[] {
-//                                            result.getOffset(0),
-//                                            result.getOffset(1),
-//                                            result.getOffset(2) });
-//                                }
-//
-//                                pair.setCrossCorrelation(result
-//                                        .getCrossCorrelation());
-//
-//                                Log.info(pair.getImagePlus1().getTitle()
-//                                        + "["
-//                                        + pair.getTimePoint1()
-//                                        + "]"
-//                                        + " <- "
-//                                        + pair.getImagePlus2().getTitle()
-//                                        + "["
-//                                        + pair.getTimePoint2()
-//                                        + "]"
-//                                        + ": "
-//                                        + Util.printCoordinates(result
-//                                                .getOffset())
-//                                        + " correlation (R)="
-//                                        + result.getCrossCorrelation() + " ("
-//                                        + (System.currentTimeMillis() - start)
-//                                        + " ms)");
-//                            }
-//                        }
-//                    }
-//                });
-//            }
-
-            final long time = System.currentTimeMillis();
-            SimpleMultiThreading.startAndJoin(threads);
-
             // get the final positions of all tiles
             optimized =
                     GlobalOptimization.optimize(pairs, pairs.get(0).getTile1(),
@@ -152,6 +91,257 @@ public class CollectionStitchingImgLib {
         return optimized;
     }
 
+    /**
+     * Computes the relative shift and correlation of all pairs. Pairs are
+     * registered in the order of their tiles, so the pairs of a tile follow
+     * each other and its spectrum is still cached when it is needed again.
+     * With {@link StitchingParameters#cpuMemChoice} 0 the pairs are
+     * registered one after the other without caching, otherwise on as many
+     * threads as there are cores and the heap allows.
+     *
+     * A pair whose tiles turn out not to overlap or whose registration
+     * fails is marked as invalid overlap with a correlation of 0, the other
+     * pairs are still registered.
+     *
+     * @return false if the registration was interrupted
+     */
+    protected static boolean registerPairs(final Vector<ComparePair> pairs,
+            final StitchingParameters params, final OpService ops) {
+        final ArrayList<ComparePair> ordered = orderPairs(pairs);
+
+        final SpectrumCache cache;
+        final int numThreads;
+
+        if (params.cpuMemChoice == 0) {
+            cache = null;
+            numThreads = 1;
+        } else {
+            cache = new SpectrumCache(StitchingParameters.spectrumCacheSize);
+            numThreads =
+                    numThreads(ordered, Memory.availableHeap()
+                            - StitchingParameters.spectrumCacheSize, Runtime
+                            .getRuntime().availableProcessors());
+        }
+
+        Log.info("Registering " + ordered.size() + " pairs using "
+                + numThreads + " thread(s).");
+
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(numThreads);
+        final ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+        final long time = System.currentTimeMillis();
+
+        for (final ComparePair pair : ordered) {
+            tasks.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    registerPair(pair, cache, params, ops);
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        for (int i = 0; i < tasks.size(); ++i) {
+            try {
+                tasks.get(i).get();
+            } catch (final InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (final ExecutionException e) {
+                // a single pair must not stop the others
+                ignorePair(ordered.get(i),
+                        "registration failed (" + e.getCause() + ")");
+            }
+        }
+
+        final long duration = Math.max(1, System.currentTimeMillis() - time);
+        Log.info("Registered " + ordered.size() + " pairs in " + duration
+                + " ms (" + (1000L * ordered.size() / duration)
+                + " pairs/s).");
+
+        return true;
+    }
+
+    /**
+     * @return the pairs sorted by their first and then their second tile
+     */
+    static ArrayList<ComparePair> orderPairs(final List<ComparePair> pairs) {
+        final ArrayList<ComparePair> ordered =
+                new ArrayList<ComparePair>(pairs);
+        Collections.sort(ordered, new Comparator<ComparePair>() {
+            @Override
+            public int compare(final ComparePair o1, final ComparePair o2) {
+                final int c = first(o1).compareTo(first(o2));
+                return c != 0 ? c : second(o1).compareTo(second(o2));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * @param available
+     *            - the bytes of the heap the registration may use
+     * @param cores
+     *            - the number of cores
+     * @return how many pairs can be registered at the same time, at least one
+     */
+    static int numThreads(final List<ComparePair> pairs,
+            final long available, final int cores) {
+        long maxPixels = 1;
+        for (final ComparePair pair : pairs) {
+            maxPixels = Math.max(maxPixels,
+                    numPixels(pair.getImagePlus1())
+                            + numPixels(pair.getImagePlus2()));
+        }
+
+        // two padded complex spectra, their product and the inverse
+        // transform per pair
+        final long bytesPerPair = 16 * maxPixels;
+
+        return (int) Math.max(1, Math.min(cores, available / bytesPerPair));
+    }
+
+    private static void registerPair(final ComparePair pair,
+            final SpectrumCache cache, final StitchingParameters params,
+            final OpService ops) {
+        final long start = System.currentTimeMillis();
+
+        final ImgPlus<FloatType> img1 =
+                registeredImage(pair.getImagePlus1(), params.channel1,
+                        pair.getTimePoint1());
+        final ImgPlus<FloatType> img2 =
+                registeredImage(pair.getImagePlus2(), params.channel2,
+                        pair.getTimePoint2());
+
+        final PairWiseStitchingResult result;
+
+        if (params.overlapRoi) {
+            result =
+                    PairWiseStitchingImgLib.stitchOverlap(img1, img2, pair
+                            .getTile1().getElement(), pair.getTile2()
+                            .getElement(), params, ops);
+        } else if (params.registrationDownsampling > 1) {
+            result =
+                    PairWiseStitchingImgLib.stitchCoarseToFine(img1, img2,
+                            params, ops);
+        } else {
+            // a tile can be the first or the second of a pair, its spectrum
+            // is only the same if both use the same channel
+            result =
+                    PairWiseStitchingImgLib.stitchPairwise(img1, img2,
+                            pair.getTile1(), pair.getTile2(),
+                            params.channel1 == params.channel2 ? cache : null,
+                            pair.getTimePoint1(), pair.getTimePoint2(),
+                            params, ops);
+        }
+
+        if (result == null) {
+            // e.g. the tiles do not overlap given the layout
+            ignorePair(pair, "no shift found");
+            return;
+        }
+
+        final float[] shift = new float[params.dimensionality];
+        for (int d = 0; d < shift.length; ++d) {
+            shift[d] = result.getOffset(d);
+        }
+
+        pair.setRelativeShift(shift);
+        pair.setCrossCorrelation((float) result.getCrossCorrelation());
+
+        Log.info(pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1()
+                + "]" + " <- " + pair.getImagePlus2().getTitle() + "["
+                + pair.getTimePoint2() + "]" + ": "
+                + Util.printCoordinates(shift) + " correlation (R)="
+                + result.getCrossCorrelation() + " ("
+                + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    /**
+     * Marks the pair as invalid overlap with a correlation of 0, so the
+     * global optimization ignores it.
+     */
+    private static void ignorePair(final ComparePair pair,
+            final String reason) {
+        pair.setCrossCorrelation(0);
+        pair.setIsValidOverlap(false);
+
+        Log.info(pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1()
+                + "]" + " <- " + pair.getImagePlus2().getTitle() + "["
+                + pair.getTimePoint2() + "]" + ": " + reason
+                + ", the pair is ignored");
+    }
+
+    /**
+     * @param channel
+     *            - the channel to register, 0 averages all channels
+     * @param timepoint
+     *            - the timepoint to register, starting at 1
+     * @return the 2d or 3d image of the channel and timepoint that is
+     *         registered
+     */
+    static ImgPlus<FloatType> registeredImage(final ImagePlus imp,
+            final int channel, final int timepoint) {
+        final String title = imp.getTitle();
+
+        if (imp.getNChannels() == 1 && imp.getNFrames() == 1) {
+            return new ImgPlus<FloatType>(ImageInterpolation.wrapFloat(imp),
+                    title);
+        }
+
+        if (channel > 0 || imp.getNChannels() == 1) {
+            return new ImgPlus<FloatType>(
+                    ImageInterpolation.wrapFloat(Hyperstack_rearranger
+                            .getImageChunk(imp, Math.max(1, channel),
+                                    timepoint)), title);
+        }
+
+        // the average of all channels
+        Img<FloatType> average = null;
+
+        for (int c = 1; c <= imp.getNChannels(); ++c) {
+            final Img<FloatType> chunk =
+                    ImageInterpolation.wrapFloat(Hyperstack_rearranger
+                            .getImageChunk(imp, c, timepoint));
+
+            if (average == null) {
+                final long[] dimensions = new long[chunk.numDimensions()];
+                chunk.dimensions(dimensions);
+                average = ArrayImgs.floats(dimensions);
+            }
+
+            final Cursor<FloatType> sum = average.cursor();
+            final Cursor<FloatType> value =
+                    Views.flatIterable(chunk).cursor();
+            while (sum.hasNext()) {
+                sum.next().add(value.next());
+            }
+        }
+
+        final FloatType numChannels = new FloatType(imp.getNChannels());
+        for (final FloatType pixel : average) {
+            pixel.div(numChannels);
+        }
+
+        return new ImgPlus<FloatType>(average, title);
+    }
+
+    private static ImagePlusTimePoint first(final ComparePair pair) {
+        return pair.getTile1().compareTo(pair.getTile2()) <= 0 ? pair
+                .getTile1() : pair.getTile2();
+    }
+
+    private static ImagePlusTimePoint second(final ComparePair pair) {
+        return pair.getTile1().compareTo(pair.getTile2()) <= 0 ? pair
+                .getTile2() : pair.getTile1();
+    }
+
+    private static long numPixels(final ImagePlus imp) {
+        return (long) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+    }
+
     protected static Roi getROI(final ImageCollectionElement e1,
             final ImageCollectionElement e2) {
         final int start[] = new int[2], end[] = new int[2];
@@ -189,6 +379,37 @@ public class CollectionStitchingImgLib {
                 end[1] - start[1]));
     }
 
+    /**
+     * Computes where two tiles are expected to overlap given their
+     * approximate offsets, grown by a margin on every side so the overlap is
+     * still contained if the layout is off by up to the margin.
+     *
+     * @return the min and max of the overlap in global coordinates, or null
+     *         if the tiles do not overlap
+     */
+    protected static long[][] getOverlap(final ImageCollectionElement e1,
+            final ImageCollectionElement e2, final int margin,
+            final int numDimensions) {
+        final long[] min = new long[numDimensions];
+        final long[] max = new long[numDimensions];
+
+        for (int d = 0; d < numDimensions; ++d) {
+            final float start = Math.max(e1.offset[d], e2.offset[d]);
+            final float end =
+                    Math.min(e1.offset[d] + e1.size[d], e2.offset[d]
+                            + e2.size[d]);
+
+            if (end <= start) {
+                return null;
+            }
+
+            min[d] = Math.round(start) - margin;
+            max[d] = Math.round(end) - 1 + margin;
+        }
+
+        return new long[][] { min, max };
+    }
+
     protected static Vector<ComparePair> findOverlappingTiles(
             final ArrayList<ImageCollectionElement> elements,
             final StitchingParameters params) {
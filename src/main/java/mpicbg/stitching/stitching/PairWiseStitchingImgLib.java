@@ -1,17 +1,24 @@
 package mpicbg.stitching.stitching;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import mpicbg.stitching.utils.ComplexImageHelpers;
-import mpicbg.stitching.utils.FixedSizePriorityQueue;
+import mpicbg.stitching.utils.LocalMaxima;
+import mpicbg.stitching.utils.Log;
 import net.imagej.ImgPlus;
 import net.imagej.ops.OpService;
 import net.imglib2.Cursor;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.neighborhood.RectangleShape;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.outofbounds.OutOfBoundsConstantValueFactory;
 import net.imglib2.outofbounds.OutOfBoundsFactory;
@@ -20,8 +27,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
-import net.imglib2.view.ExtendedRandomAccessibleInterval;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -42,29 +47,432 @@ public class PairWiseStitchingImgLib {
             final ImgPlus<T> imp1, final ImgPlus<T> imp2, final int timepoint1,
             final int timepoint2, final StitchingParameters params,
             OpService opservice) {
+        return stitchPairwise(imp1, imp2, null, null, null, timepoint1,
+                timepoint2, params, opservice);
+    }
+
+    /**
+     * Stitches two tiles of a collection, the spectra of the tiles are taken
+     * from and added to the cache.
+     *
+     * @param tile1
+     *            - identifies the tile of imp1 in the cache
+     * @param tile2
+     *            - identifies the tile of imp2 in the cache
+     * @param cache
+     *            - the spectra of the tiles, may be null
+     * @return the shift of the second tile relative to the first one and
+     *         the cross correlation of the tiles at that shift, or
+     *         null if no shift was found
+     */
+    public static <T extends RealType<T>> PairWiseStitchingResult stitchPairwise(
+            final ImgPlus<T> imp1, final ImgPlus<T> imp2, final Object tile1,
+            final Object tile2, final SpectrumCache cache,
+            final int timepoint1, final int timepoint2,
+            final StitchingParameters params, OpService opservice) {
         PairWiseStitchingResult result = null;
 
-        result = computePhaseCorrelation(imp1, imp2, params, opservice);
+        result = computePhaseCorrelation(imp1, imp2, tile1, tile2, cache,
+                params, opservice);
 
         if (result == null) {
             // Log.error("Pairwise stitching failed.");
             return null;
         }
 
-        // add the offset to the shift
-        result.offset[0] -= imp2.max(0);
-        result.offset[1] -= imp2.max(1);
+        // the peak wraps around at the padded size of the tiles
+        final long[] shift =
+                resolveWrap(result.offset, result.size, imp1, imp2);
+
+        if (shift == null) {
+            return null;
+        }
+
+        result.offset = shift;
+        result.crossCorrelation = crossCorrelation(imp1, imp2, shift);
+
+        return result;
+    }
+
+    /**
+     * Stitches two tiles of a collection using only the region where they are
+     * expected to overlap given their approximate offsets, grown by
+     * {@link StitchingParameters#overlapMargin}. Both tiles are cropped to
+     * the same box (pixels outside of a tile are zero), so the Fourier
+     * transforms are only as large as the overlap. The spectra of the crops
+     * depend on the pair, so they are not cached.
+     *
+     * @return the shift of the second tile relative to the first one and
+     *         the cross correlation of the tiles at that shift, or
+     *         null if the tiles are not expected to overlap
+     */
+    public static <T extends RealType<T>> PairWiseStitchingResult stitchOverlap(
+            final ImgPlus<T> imp1, final ImgPlus<T> imp2,
+            final ImageCollectionElement e1, final ImageCollectionElement e2,
+            final StitchingParameters params, final OpService opservice) {
+        final long[][] overlap =
+                CollectionStitchingImgLib.getOverlap(e1, e2,
+                        params.overlapMargin, params.dimensionality);
+
+        if (overlap == null) {
+            return null;
+        }
+
+        final ImgPlus<T> crop1 = crop(imp1, position(e1), overlap);
+        final ImgPlus<T> crop2 = crop(imp2, position(e2), overlap);
+
+        final PairWiseStitchingResult result =
+                computePhaseCorrelation(crop1, crop2, params, opservice);
+
+        if (result == null) {
+            return null;
+        }
+
+        // the peak is the correction of the layout, it wraps around at the
+        // padded size of the crop
+        for (int d = 0; d < params.dimensionality; ++d) {
+            result.offset[d] =
+                    Math.round(e2.offset[d] - e1.offset[d])
+                            + unwrap(result.offset[d], result.size[d]);
+        }
+
+        result.crossCorrelation =
+                crossCorrelation(imp1, imp2, result.offset);
+
+        return result;
+    }
+
+    /**
+     * Stitches two tiles coarse-to-fine: the shift is estimated on the tiles
+     * downsampled by {@link StitchingParameters#registrationDownsampling}
+     * and then refined at full resolution on the overlap it predicts, grown
+     * by two coarse pixels (which is what the estimate can be off by). Only
+     * corrections of up to two coarse pixels are searched for.
+     *
+     * @return the shift of the second tile relative to the first one and
+     *         the cross correlation of the tiles at that shift, or
+     *         null if no shift was found
+     */
+    public static <T extends RealType<T>> PairWiseStitchingResult stitchCoarseToFine(
+            final ImgPlus<T> imp1, final ImgPlus<T> imp2,
+            final StitchingParameters params, final OpService opservice) {
+        final int n = params.dimensionality;
+        final int factor = params.registrationDownsampling;
+
+        final ImgPlus<FloatType> coarse1 = downsample(imp1, n, factor);
+        final ImgPlus<FloatType> coarse2 = downsample(imp2, n, factor);
+
+        final PairWiseStitchingResult coarse =
+                computePhaseCorrelation(coarse1, coarse2, params, opservice);
+
+        if (coarse == null) {
+            return null;
+        }
+
+        final long[] estimate =
+                resolveWrap(coarse.offset, coarse.size, coarse1, coarse2);
+
+        if (estimate == null) {
+            return null;
+        }
+
+        // the overlap at full resolution, in the coordinates of the first
+        // tile
+        final int margin = 2 * factor;
+        final long[][] box = new long[2][n];
+
+        for (int d = 0; d < n; ++d) {
+            estimate[d] *= factor;
+            box[0][d] = Math.max(0, estimate[d]) - margin;
+            box[1][d] =
+                    Math.min(imp1.dimension(d), estimate[d]
+                            + imp2.dimension(d)) - 1 + margin;
+        }
+
+        final ImgPlus<T> crop1 = crop(imp1, new long[n], box);
+        final ImgPlus<T> crop2 = crop(imp2, estimate, box);
+
+        // the estimate is off by the margin at most, larger corrections are
+        // not searched for
+        final long[] maxShift = new long[n];
+        Arrays.fill(maxShift, margin);
+
+        final PairWiseStitchingResult result =
+                computePhaseCorrelation(crop1, crop2, maxShift, params,
+                        opservice);
+
+        if (result == null) {
+            return null;
+        }
+
+        for (int d = 0; d < n; ++d) {
+            result.offset[d] =
+                    estimate[d] + unwrap(result.offset[d], result.size[d]);
+        }
 
-        result.offset[0] += imp1.max(1);
-        result.offset[1] += imp1.max(1);
+        result.crossCorrelation =
+                crossCorrelation(imp1, imp2, result.offset);
 
         return result;
     }
 
-    @SuppressWarnings({ "deprecation", "unchecked" })
+    /**
+     * The phase correlation cannot tell a shift from the shift minus the
+     * (padded) size of the images. Tests all of these shifts on the images
+     * and keeps the one with the highest cross correlation.
+     *
+     * @param size
+     *            - the size of the phase correlation matrix
+     * @return the shift, or null if none of them overlaps
+     */
+    private static <S extends RealType<S>, T extends RealType<T>> long[] resolveWrap(
+            final long[] peak, final long[] size,
+            final RandomAccessibleInterval<S> img1,
+            final RandomAccessibleInterval<T> img2) {
+        final int n = peak.length;
+        final long[] shift = new long[n];
+        long[] best = null;
+        double bestR = -1;
+
+        for (int i = 0; i < 1 << n; ++i) {
+            for (int d = 0; d < n; ++d) {
+                final long p = ((peak[d] % size[d]) + size[d]) % size[d];
+                shift[d] = (i & (1 << d)) == 0 ? p : p - size[d];
+            }
+
+            final double r = crossCorrelation(img1, img2, shift);
+            if (r > bestR) {
+                bestR = r;
+                best = shift.clone();
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * @return the Pearson correlation of the overlapping pixels of the two
+     *         images if the second one is placed at the shift, or -1 if they
+     *         overlap by less than two pixels in a dimension in which they are
+     *         larger than one pixel
+     */
+    private static <S extends RealType<S>, T extends RealType<T>> double crossCorrelation(
+            final RandomAccessibleInterval<S> img1,
+            final RandomAccessibleInterval<T> img2, final long[] shift) {
+        final int n = img1.numDimensions();
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+
+        for (int d = 0; d < n; ++d) {
+            min[d] = Math.max(img1.min(d), img2.min(d) + shift[d]);
+            max[d] = Math.min(img1.max(d), img2.max(d) + shift[d]);
+            if (max[d] < min[d] || max[d] == min[d] && img1.dimension(d) > 1) {
+                return -1;
+            }
+        }
+
+        final Cursor<S> cursor1 =
+                Views.flatIterable(Views.interval(img1, min, max)).cursor();
+        final Cursor<T> cursor2 =
+                Views.flatIterable(
+                        Views.interval(Views.translate(img2, shift), min, max))
+                        .cursor();
+
+        double sum1 = 0, sum2 = 0, sum11 = 0, sum22 = 0, sum12 = 0;
+        long count = 0;
+
+        while (cursor1.hasNext()) {
+            final double a = cursor1.next().getRealDouble();
+            final double b = cursor2.next().getRealDouble();
+            sum1 += a;
+            sum2 += b;
+            sum11 += a * a;
+            sum22 += b * b;
+            sum12 += a * b;
+            ++count;
+        }
+
+        final double var1 = sum11 - sum1 * sum1 / count;
+        final double var2 = sum22 - sum2 * sum2 / count;
+
+        if (var1 <= 0 || var2 <= 0) {
+            return -1;
+        }
+
+        return (sum12 - sum1 * sum2 / count) / Math.sqrt(var1 * var2);
+    }
+
+    /**
+     * @return the image averaged over blocks of factor pixels in the first
+     *         numDimensions dimensions, only the first position of all other
+     *         dimensions (e.g. channels) is used
+     */
+    private static <T extends RealType<T>> ImgPlus<FloatType> downsample(
+            final ImgPlus<T> img, final int numDimensions, final int factor) {
+        final long[] size = new long[numDimensions];
+        long numPixels = 1;
+        for (int d = 0; d < numDimensions; ++d) {
+            size[d] = (img.dimension(d) + factor - 1) / factor;
+            numPixels *= size[d];
+        }
+
+        final float[] sums = new float[(int) numPixels];
+        final int[] counts = new int[sums.length];
+        final Cursor<T> cursor = img.localizingCursor();
+
+        pixels: while (cursor.hasNext()) {
+            final T value = cursor.next();
+
+            for (int d = numDimensions; d < img.numDimensions(); ++d) {
+                if (cursor.getLongPosition(d) != img.min(d)) {
+                    continue pixels;
+                }
+            }
+
+            long i = 0;
+            for (int d = numDimensions - 1; d >= 0; --d) {
+                i = i * size[d] + (cursor.getLongPosition(d) - img.min(d))
+                        / factor;
+            }
+
+            sums[(int) i] += value.getRealFloat();
+            ++counts[(int) i];
+        }
+
+        for (int i = 0; i < sums.length; ++i) {
+            sums[i] /= counts[i];
+        }
+
+        return new ImgPlus<FloatType>(ArrayImgs.floats(sums, size),
+                img.getName());
+    }
+
+    /**
+     * @return the position of a tile of the collection, rounded to pixels
+     */
+    private static long[] position(final ImageCollectionElement element) {
+        final long[] position = new long[element.offset.length];
+        for (int d = 0; d < position.length; ++d) {
+            position[d] = Math.round(element.offset[d]);
+        }
+        return position;
+    }
+
+    /**
+     * @return the peak of a phase correlation of images of the given size as
+     *         shift between -size/2 and size/2
+     */
+    private static long unwrap(final long peak, final long size) {
+        long shift = peak % size;
+        if (shift > size / 2) {
+            shift -= size;
+        } else if (shift < -size / 2) {
+            shift += size;
+        }
+        return shift;
+    }
+
+    /**
+     * @return the part of the tile inside the box, starting at 0. Pixels
+     *         outside of the tile are zero, dimensions that are not part of
+     *         the box (e.g. channels) are kept.
+     *
+     * @param position
+     *            - the position of the tile in the coordinates of the box
+     */
+    private static <T extends RealType<T>> ImgPlus<T> crop(
+            final ImgPlus<T> img, final long[] position, final long[][] box) {
+        final long[] min = new long[img.numDimensions()];
+        final long[] max = new long[img.numDimensions()];
+
+        for (int d = 0; d < img.numDimensions(); ++d) {
+            if (d < box[0].length) {
+                min[d] = box[0][d] - position[d];
+                max[d] = box[1][d] - position[d];
+            } else {
+                min[d] = img.min(d);
+                max[d] = img.max(d);
+            }
+        }
+
+        final RandomAccessibleInterval<T> crop =
+                Views.zeroMin(Views.interval(Views.extendZero(img), min, max));
+
+        return new ImgPlus<T>(new ImgView<T>(crop, img.factory()),
+                img.getName());
+    }
+
+    /**
+     * @return the image extended with zeros to the given size, or the image
+     *         itself if it has that size
+     */
+    private static <T extends RealType<T>> ImgPlus<T> pad(
+            final ImgPlus<T> img, final long[] size) {
+        boolean sameSize = true;
+        for (int d = 0; d < size.length; ++d) {
+            sameSize &= img.dimension(d) == size[d];
+        }
+        if (sameSize) {
+            return img;
+        }
+
+        final long[][] box = new long[2][size.length];
+        for (int d = 0; d < size.length; ++d) {
+            box[0][d] = img.min(d);
+            box[1][d] = img.min(d) + size[d] - 1;
+        }
+        return crop(img, new long[size.length], box);
+    }
+
     public static <T extends RealType<T>> PairWiseStitchingResult computePhaseCorrelation(
             final ImgPlus<T> img1, final ImgPlus<T> img2,
             StitchingParameters params, OpService ops) {
+        return computePhaseCorrelation(img1, img2, null, null, null, params,
+                ops);
+    }
+
+    /**
+     * Computes the phase correlation, taking the normalized spectra of the
+     * tiles from the cache if they have been computed for another pair
+     * already. The offset of the result is the peak of the phase
+     * correlation, its cross correlation is not computed yet.
+     *
+     * @param tile1
+     *            - identifies the tile of img1 in the cache
+     * @param tile2
+     *            - identifies the tile of img2 in the cache
+     * @param cache
+     *            - the spectra of the tiles, may be null
+     */
+    public static <T extends RealType<T>> PairWiseStitchingResult computePhaseCorrelation(
+            final ImgPlus<T> img1, final ImgPlus<T> img2, final Object tile1,
+            final Object tile2, final SpectrumCache cache,
+            StitchingParameters params, OpService ops) {
+        return computePhaseCorrelation(img1, img2, tile1, tile2, cache, null,
+                params, ops);
+    }
+
+    /**
+     * Computes the phase correlation, only peaks up to maxShift are
+     * considered.
+     *
+     * @param maxShift
+     *            - the largest shift per dimension (in either direction),
+     *            dimensions that are not in it are not limited
+     */
+    static <T extends RealType<T>> PairWiseStitchingResult computePhaseCorrelation(
+            final ImgPlus<T> img1, final ImgPlus<T> img2,
+            final long[] maxShift, final StitchingParameters params,
+            final OpService ops) {
+        return computePhaseCorrelation(img1, img2, null, null, null,
+                maxShift, params, ops);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static <T extends RealType<T>> PairWiseStitchingResult computePhaseCorrelation(
+            final ImgPlus<T> img1, final ImgPlus<T> img2, final Object tile1,
+            final Object tile2, final SpectrumCache cache,
+            final long[] maxShift, StitchingParameters params, OpService ops) {
 
         int padding = 512;
         OutOfBoundsMirrorExpWindowingFactory<T, Img<T>> mirrorPad =
@@ -74,40 +482,61 @@ public class PairWiseStitchingImgLib {
                 new OutOfBoundsConstantValueFactory<T, Img<T>>(
                         Util.getTypeFromInterval(img1).createVariable());
 
-        long[] size = new long[] { 512, 512 };
-        Img<FloatType> outManual = ArrayImgs.floats(size);
-
         // Img<ComplexFloatType> fft1 = (Img<ComplexFloatType>)
         // ops.run(FFT.class, img1.getImg(), mirrorPad);
 
-        Img<ComplexFloatType> fft1 = (Img<ComplexFloatType>) ops.fft(img1);
-        Img<ComplexFloatType> fft2 = (Img<ComplexFloatType>) ops.fft(img2);
+        // the spectra are multiplied pixel by pixel, so both tiles are
+        // padded with zeros to the same size, one the FFT does not pad any
+        // further, so the inverse transform has that size as well
+        final long[] common = new long[img1.numDimensions()];
+        for (int d = 0; d < common.length; ++d) {
+            common[d] = Math.max(img1.dimension(d), img2.dimension(d));
+        }
 
-//        ImageJFunctions.show(fft1, "fft 1");
-//        ImageJFunctions.show(fft2, "fft 2");
+        final long[] size = new long[common.length];
+        FFTMethods.dimensionsRealToComplexFast(new FinalInterval(common),
+                size, new long[common.length]);
 
-        // TODO Create op for this!
-        ComplexImageHelpers.normalizeComplexImage(fft1, normalizationThreshold);
-        ComplexImageHelpers.normalizeAndConjugateComplexImage(fft2,
-                normalizationThreshold);
+        final Img<ComplexFloatType> fft1 =
+                spectrum(pad(img1, size), tile1, cache, ops);
+        final Img<ComplexFloatType> fft2 =
+                spectrum(pad(img2, size), tile2, cache, ops);
 
 //        ImageJFunctions.show(fft1, "normalized fft 1");
-//        ImageJFunctions.show(fft2, "normalized, conjugated fft2");
+//        ImageJFunctions.show(fft2, "normalized fft2");
 
-        // multiply the complex images
+        // multiply fft1 with the conjugate of fft2, into a new image as the
+        // spectra may be shared with other pairs
+        final Img<ComplexFloatType> product =
+                fft1.factory().create(fft1, new ComplexFloatType());
+        Cursor<ComplexFloatType> productCursor = product.cursor();
         Cursor<ComplexFloatType> fft1cursor = fft1.cursor();
         Cursor<ComplexFloatType> fft2RA = fft2.cursor();
 
         while (fft1cursor.hasNext()) {
-            fft1cursor.next().mul(fft2RA.next());
+            final ComplexFloatType a = fft1cursor.next();
+            final ComplexFloatType b = fft2RA.next();
+            final float aRe = a.getRealFloat(), aIm = a.getImaginaryFloat();
+            final float bRe = b.getRealFloat(), bIm = b.getImaginaryFloat();
+
+            productCursor.next().set(aRe * bRe + aIm * bIm,
+                    aIm * bRe - aRe * bIm);
         }
 
-        ops.ifft(outManual, fft1);
+        final ArrayImg<FloatType, FloatArray> outManual =
+                ArrayImgs.floats(size);
+
+        ops.ifft(outManual, product);
 //        ImageJFunctions.show(outManual, "manual");
 
+        if (maxShift != null) {
+            limitShift(outManual.update(null).getCurrentStorageArray(), size,
+                    maxShift);
+        }
+
         List<PhaseCorrelationPeak> peaks =
                 extractPhaseCorrelationPeaks(outManual, params.checkPeaks, ops);
-        System.out.println(peaks.toString());
+        Log.debug(peaks.toString());
 
         verifyWithCrossCorrelation(peaks, size, img1, img2);
 
@@ -118,13 +547,49 @@ public class PairWiseStitchingImgLib {
         PhaseCorrelationPeak topPeak = peaks.get(peaks.size() - 1);
 
         PairWiseStitchingResult result = new PairWiseStitchingResult(
-                topPeak.getPosition(), topPeak.phaseCorrelationPeak,
-                topPeak.getCrossCorrelationPeak());
+                topPeak.getPosition(), topPeak.getCrossCorrelationPeak(),
+                topPeak.phaseCorrelationPeak);
+        result.size = size;
 
         return result;
 
     }
 
+    /**
+     * @return the normalized spectrum of the image, from the cache if there
+     *         is one
+     */
+    private static <T extends RealType<T>> Img<ComplexFloatType> spectrum(
+            final ImgPlus<T> img, final Object tile,
+            final SpectrumCache cache, final OpService ops) {
+        final Callable<Img<ComplexFloatType>> spectrum =
+                new Callable<Img<ComplexFloatType>>() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public Img<ComplexFloatType> call() {
+                        final Img<ComplexFloatType> fft =
+                                (Img<ComplexFloatType>) ops.fft(img);
+
+                        // TODO Create op for this!
+                        ComplexImageHelpers.normalizeComplexImage(fft,
+                                normalizationThreshold);
+
+                        return fft;
+                    }
+                };
+
+        if (cache != null && tile != null) {
+            return cache.get(tile, img, spectrum);
+        }
+
+        try {
+            return spectrum.call();
+        } catch (final Exception e) {
+            // call() does not throw checked exceptions
+            throw new RuntimeException(e);
+        }
+    }
+
     private static <T extends RealType<T>> void verifyWithCrossCorrelation(
             final List<PhaseCorrelationPeak> peaks, final long[] dims,
             final ImgPlus<T> img1, final ImgPlus<T> img2) {
@@ -178,6 +643,34 @@ public class PairWiseStitchingImgLib {
 
     }
 
+    /**
+     * Excludes all shifts of the phase correlation matrix that are larger
+     * than maxShift from the peak search. The matrix wraps around, so a
+     * shift is the position or the position minus the size, whichever is
+     * smaller.
+     */
+    private static void limitShift(final float[] data, final long[] size,
+            final long[] maxShift) {
+        final long[] position = new long[size.length];
+
+        for (int i = 0; i < data.length; ++i) {
+            for (int d = 0; d < maxShift.length; ++d) {
+                if (Math.abs(unwrap(position[d], size[d])) > maxShift[d]) {
+                    data[i] = Float.NEGATIVE_INFINITY;
+                    break;
+                }
+            }
+
+            // next position in raster order
+            for (int d = 0; d < size.length; ++d) {
+                if (++position[d] < size[d]) {
+                    break;
+                }
+                position[d] = 0;
+            }
+        }
+    }
+
     /**
      * Extract the n best peaks in the phase correlation.
      * 
@@ -187,40 +680,45 @@ public class PairWiseStitchingImgLib {
      *            the number of peaks to extract
      * @param ops
      *            the Opservice to use
-     * @return list of the n best peaks
+     * @return list of the n best peaks, the best one last, never empty
      */
-    private static final <T extends RealType<T>> List<PhaseCorrelationPeak> extractPhaseCorrelationPeaks(
-            final Img<T> invPCM, final int numPeaks, OpService ops) {
-
-        FixedSizePriorityQueue<PhaseCorrelationPeak> peaks =
-                new FixedSizePriorityQueue<PhaseCorrelationPeak>(numPeaks);
+    private static final List<PhaseCorrelationPeak> extractPhaseCorrelationPeaks(
+            final ArrayImg<FloatType, FloatArray> invPCM, final int numPeaks,
+            OpService ops) {
         final int dims = invPCM.numDimensions();
+        final int[] size = new int[dims];
+        for (int d = 0; d < dims; ++d) {
+            size[d] = (int) invPCM.dimension(d);
+        }
+
+        final float[] data = invPCM.update(null).getCurrentStorageArray();
+        int[] maxima = LocalMaxima.find(data, size, numPeaks);
 
-        ExtendedRandomAccessibleInterval<T, Img<T>> extended =
-                Views.extendZero(invPCM);
-        IntervalView<T> interval = Views.interval(extended, invPCM);
-
-        // TODO: OFFSETS?
-
-        // Define neightborhood for the Peaks
-        final int neighborhoodSize = 3; // TODO
-        RectangleShape rs = new RectangleShape(neighborhoodSize, false);
-        Cursor<Neighborhood<T>> neighbour = rs.neighborhoods(interval).cursor();
-        // find local maximum in each neighborhood
-        while (neighbour.hasNext()) {
-            Cursor<T> nhCursor = neighbour.next().localizingCursor();
-            double maxValue = 0.0d;
-            long[] maxPos = new long[dims];
-            while (nhCursor.hasNext()) {
-                double localValue = nhCursor.next().getRealDouble();
-                if (localValue > maxValue) {
-                    maxValue = localValue;
-                    nhCursor.localize(maxPos);
+        if (maxima.length == 0) {
+            // no positive local maximum (e.g. constant tiles), use the
+            // global maximum
+            int max = 0;
+            for (int i = 1; i < data.length; ++i) {
+                if (data[i] > data[max]) {
+                    max = i;
                 }
             }
-            // queue ensures only n best are added.
-            peaks.add(new PhaseCorrelationPeak(maxPos, maxValue));
+            maxima = new int[] { max };
         }
-        return peaks.asList();
+
+        final List<PhaseCorrelationPeak> peaks =
+                new ArrayList<PhaseCorrelationPeak>(maxima.length);
+        final long[] maxPos = new long[dims];
+
+        for (int i = maxima.length - 1; i >= 0; --i) {
+            int rest = maxima[i];
+            for (int d = 0; d < dims; ++d) {
+                maxPos[d] = rest % size[d];
+                rest /= size[d];
+            }
+            peaks.add(new PhaseCorrelationPeak(maxPos, data[maxima[i]]));
+        }
+
+        return peaks;
     }
 }
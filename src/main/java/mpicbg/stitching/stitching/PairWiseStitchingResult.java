@@ -5,6 +5,9 @@ public class PairWiseStitchingResult {
     double crossCorrelation;
     double phaseCorrelation;
 
+    // the size of the phase correlation matrix, the offset wraps around at it
+    long[] size;
+
     public PairWiseStitchingResult(final long[] offset,
             final double crossCorrelation, final double phaseCorrelation) {
         this.offset = offset;
@@ -31,4 +34,12 @@ public class PairWiseStitchingResult {
     public double getPhaseCorrelation() {
         return phaseCorrelation;
     }
+
+    /**
+     * @return the size of the phase correlation matrix (the padded size of
+     *         the images), the offset is only known modulo this size
+     */
+    public long[] getSize() {
+        return size;
+    }
 }
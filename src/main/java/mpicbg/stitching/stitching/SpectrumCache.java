@@ -0,0 +1,196 @@
+package mpicbg.stitching.stitching;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+
+/**
+ * Keeps the normalized Fourier spectra of tiles, so that a tile that is part
+ * of several pairs is only transformed once. A spectrum is identified by its
+ * tile and the size of the transformed image (i.e. the ROI that was used).
+ * The least recently used spectra are dropped once the spectra exceed the
+ * given number of bytes.
+ * <p>
+ * Spectra returned by the cache are shared and must not be modified.
+ * </p>
+ */
+public class SpectrumCache {
+
+    private final long maxBytes;
+    private long bytes = 0;
+
+    private final LinkedHashMap<Key, Img<ComplexFloatType>> spectra =
+            new LinkedHashMap<Key, Img<ComplexFloatType>>(16, 0.75f, true);
+
+    // spectra that are being computed
+    private final Map<Key, FutureTask<Img<ComplexFloatType>>> pending =
+            new HashMap<Key, FutureTask<Img<ComplexFloatType>>>();
+
+    /**
+     * @param maxBytes
+     *            - the memory the spectra may use
+     */
+    public SpectrumCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param tile
+     *            - identifies the tile, e.g. its {@link ImagePlusTimePoint}
+     * @param image
+     *            - the size of the transformed image
+     * @return the spectrum or null if it is not cached
+     */
+    public synchronized Img<ComplexFloatType> get(final Object tile,
+            final Dimensions image) {
+        return spectra.get(new Key(tile, image));
+    }
+
+    /**
+     * Returns the spectrum of the tile, computing it if it is not cached. If
+     * several threads ask for the same spectrum at the same time, it is only
+     * computed once and the other threads wait for it.
+     *
+     * @param spectrum
+     *            - computes the spectrum
+     * @return the spectrum, which is added to the cache
+     */
+    public Img<ComplexFloatType> get(final Object tile,
+            final Dimensions image,
+            final Callable<Img<ComplexFloatType>> spectrum) {
+        final Key key = new Key(tile, image);
+        final FutureTask<Img<ComplexFloatType>> task;
+        final boolean computeNow;
+
+        synchronized (this) {
+            final Img<ComplexFloatType> cached = spectra.get(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            final FutureTask<Img<ComplexFloatType>> running = pending.get(key);
+            if (running == null) {
+                task = new FutureTask<Img<ComplexFloatType>>(spectrum);
+                pending.put(key, task);
+                computeNow = true;
+            } else {
+                task = running;
+                computeNow = false;
+            }
+        }
+
+        if (computeNow) {
+            task.run();
+        }
+
+        final Img<ComplexFloatType> result;
+
+        try {
+            result = task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            if (computeNow) {
+                synchronized (this) {
+                    pending.remove(key);
+                }
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (computeNow) {
+            synchronized (this) {
+                put(tile, image, result);
+                pending.remove(key);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds a spectrum, dropping the least recently used ones if the cache is
+     * full. Spectra larger than the cache are not added.
+     */
+    public synchronized void put(final Object tile, final Dimensions image,
+            final Img<ComplexFloatType> spectrum) {
+        final long size = numBytes(spectrum);
+
+        if (size > maxBytes) {
+            return;
+        }
+
+        final Img<ComplexFloatType> old =
+                spectra.put(new Key(tile, image), spectrum);
+        if (old != null) {
+            bytes -= numBytes(old);
+        }
+        bytes += size;
+
+        final Iterator<Map.Entry<Key, Img<ComplexFloatType>>> eldest =
+                spectra.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= numBytes(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drops all cached spectra.
+     */
+    public synchronized void clear() {
+        spectra.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of bytes used by the cached spectra
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long numBytes(final Img<ComplexFloatType> spectrum) {
+        // two floats per pixel
+        return spectrum.size() * 8;
+    }
+
+    private static class Key {
+        final Object tile;
+        final long[] dimensions;
+
+        Key(final Object tile, final Dimensions image) {
+            this.tile = tile;
+            dimensions = new long[image.numDimensions()];
+            image.dimensions(dimensions);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return tile.equals(other.tile)
+                    && Arrays.equals(dimensions, other.dimensions);
+        }
+
+        @Override
+        public int hashCode() {
+            return tile.hashCode() * 31 + Arrays.hashCode(dimensions);
+        }
+    }
+}
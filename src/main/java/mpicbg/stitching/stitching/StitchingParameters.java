@@ -18,6 +18,12 @@ public class StitchingParameters {
      */
     public static boolean alwaysCopy = false;
 
+    /**
+     * How many bytes the Fourier spectra of the tiles may use that are kept
+     * while stitching a collection, see {@link SpectrumCache}
+     */
+    public static long spectrumCacheSize = 512L * 1024 * 1024;
+
     public int dimensionality;
     public String fusionMethod;
     public String fusedName;
@@ -32,6 +38,20 @@ public class StitchingParameters {
     public double yOffset;
     public double zOffset;
 
+    /**
+     * Register the tiles of a collection only on the region where they are
+     * expected to overlap given the approximate layout, grown by
+     * overlapMargin pixels
+     */
+    public boolean overlapRoi = false;
+    public int overlapMargin = 32;
+
+    /**
+     * Estimate the shifts on tiles downsampled by this factor and refine them
+     * at full resolution, 1 registers at full resolution only
+     */
+    public int registrationDownsampling = 1;
+
     public boolean virtual = false;
     public int channel1;
     /**
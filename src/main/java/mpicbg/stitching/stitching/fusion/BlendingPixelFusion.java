@@ -10,6 +10,7 @@ public class BlendingPixelFusion implements PixelFusion {
     final long[][] dimensions;
     final double percentScaling;
     final double[] border;
+    final BlendingWeights weights;
 
     final ArrayList<? extends ImageInterpolation<?>> images;
 
@@ -43,17 +44,35 @@ public class BlendingPixelFusion implements PixelFusion {
         this.images = images;
         percentScaling = fractionBlended;
 
-        numDimensions = images.get(0).getImg().numDimensions();
+        numDimensions = images.get(0).numDimensions();
         numImages = images.size();
         dimensions = new long[numImages][numDimensions];
 
         for (int i = 0; i < numImages; ++i) {
             for (int d = 0; d < numDimensions; ++d) {
-                dimensions[i][d] = images.get(i).getImg().dimension(d) - 1;
+                dimensions[i][d] = images.get(i).dimension(d) - 1;
             }
         }
 
         border = new double[numDimensions];
+        weights = new BlendingWeights(dimensions, border, percentScaling);
+
+        // reset
+        clear();
+    }
+
+    /**
+     * Instantiates a copy of the given blending that shares its precomputed
+     * weights
+     */
+    protected BlendingPixelFusion(final BlendingPixelFusion fusion) {
+        images = fusion.images;
+        percentScaling = fusion.percentScaling;
+        numDimensions = fusion.numDimensions;
+        numImages = fusion.numImages;
+        dimensions = fusion.dimensions;
+        border = fusion.border;
+        weights = fusion.weights;
 
         // reset
         clear();
@@ -69,10 +88,7 @@ public class BlendingPixelFusion implements PixelFusion {
             final double[] localPosition) {
         // we are always inside the image, so we do not want 0.0
         final double weight =
-                Math.max(
-                        0.00001,
-                        computeWeight(localPosition, dimensions[imageId],
-                                border, percentScaling));
+                Math.max(0.00001, weights.getWeight(imageId, localPosition));
 
         weightSum += weight;
         valueSum += value * weight;
@@ -88,7 +104,7 @@ public class BlendingPixelFusion implements PixelFusion {
 
     @Override
     public PixelFusion copy() {
-        return new BlendingPixelFusion(images);
+        return new BlendingPixelFusion(this);
     }
 
     /**
@@ -15,16 +15,22 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion {
         super(images);
     }
 
+    /**
+     * Instantiates a copy of the given blending that shares its precomputed
+     * weights
+     */
+    protected BlendingPixelFusionIgnoreZero(
+            final BlendingPixelFusionIgnoreZero fusion) {
+        super(fusion);
+    }
+
     @Override
     public void addValue(final double value, final int imageId,
             final double[] localPosition) {
         if (value != 0.0) {
             // we are always inside the image, so we do not want 0.0
             final double weight =
-                    Math.max(
-                            0.00001,
-                            computeWeight(localPosition, dimensions[imageId],
-                                    border, percentScaling));
+                    Math.max(0.00001, weights.getWeight(imageId, localPosition));
 
             weightSum += weight;
             valueSum += value * weight;
@@ -33,6 +39,6 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion {
 
     @Override
     public PixelFusion copy() {
-        return new BlendingPixelFusionIgnoreZero(images);
+        return new BlendingPixelFusionIgnoreZero(this);
     }
 }
@@ -0,0 +1,141 @@
+package mpicbg.stitching.stitching.fusion;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Precomputed weights for the linear blending. The weight of
+ * {@link BlendingPixelFusion#computeWeight} is a cosine of the product of one
+ * factor per axis, and each factor only depends on the position along that
+ * axis and the size of the image. The factors are tabulated once per distinct
+ * image size, so evaluating a weight only needs one table lookup per axis and
+ * one lookup in a cosine table.
+ * <p>
+ * The tables are sampled at integer positions and interpolated linearly in
+ * between. The factors are piecewise linear with integer breakpoints, so the
+ * lookup is exact up to the resolution of the cosine table.
+ * </p>
+ */
+public class BlendingWeights {
+
+    private static final int COS_STEPS = 4096;
+
+    // (cos((1 - x) * PI) + 1) / 2 sampled in [0, 1]
+    private static final double[] cosTable = new double[COS_STEPS + 2];
+
+    static {
+        for (int i = 0; i < cosTable.length; ++i) {
+            final double x = Math.min(1, (double) i / COS_STEPS);
+            cosTable[i] = (Math.cos((1 - x) * Math.PI) + 1) / 2;
+        }
+    }
+
+    // factors[image][dim][position]
+    private final double[][][] factors;
+
+    /**
+     * @param dimensions
+     *            - for each image the size - 1 of each dimension, as used by
+     *            {@link BlendingPixelFusion#computeWeight}
+     * @param border
+     *            - the border of each dimension
+     * @param percentScaling
+     *            - which percentage of the image should be blended
+     */
+    public BlendingWeights(final long[][] dimensions, final double[] border,
+            final double percentScaling) {
+        // images of the same size share their tables
+        final Map<Long, double[]>[] tables = new Map[border.length];
+        for (int d = 0; d < border.length; ++d) {
+            tables[d] = new HashMap<Long, double[]>();
+        }
+
+        factors = new double[dimensions.length][border.length][];
+
+        for (int i = 0; i < dimensions.length; ++i) {
+            for (int d = 0; d < border.length; ++d) {
+                final Long key = dimensions[i][d];
+                double[] table = tables[d].get(key);
+                if (table == null) {
+                    table =
+                            createTable(dimensions[i][d], border[d],
+                                    percentScaling);
+                    tables[d].put(key, table);
+                }
+                factors[i][d] = table;
+            }
+        }
+    }
+
+    /**
+     * @return the same weight as {@link BlendingPixelFusion#computeWeight} for
+     *         the given image and position in that image
+     */
+    public double getWeight(final int imageId, final double[] location) {
+        final double[][] imageFactors = factors[imageId];
+
+        // compute multiplicative distance to the respective borders [0...1]
+        double minDistance = 1;
+
+        for (int dim = 0; dim < location.length; ++dim) {
+            minDistance *= lookup(imageFactors[dim], location[dim]);
+        }
+
+        if (minDistance == 1) {
+            return 1;
+        } else if (minDistance <= 0) {
+            return 0.0000001;
+        } else {
+            return lookup(cosTable, minDistance * COS_STEPS);
+        }
+    }
+
+    /**
+     * Tabulates the factor of one axis for the positions 0 ... dimension + 1,
+     * positions outside of this range have the same factor as the closest end.
+     */
+    private static double[] createTable(final long dimension,
+            final double border, final double percentScaling) {
+        final double[] table = new double[(int) dimension + 2];
+
+        final float imgAreaBlend =
+                Math.round(percentScaling * 0.5f * dimension);
+
+        for (int x = 0; x < table.length; ++x) {
+            // the distance to the border that is closer
+            double value =
+                    Math.max(1, Math.min(x - border + 1, (dimension - 1) - x
+                            - border + 1));
+
+            if (value < imgAreaBlend) {
+                value = value / imgAreaBlend;
+            } else {
+                value = 1;
+            }
+
+            table[x] = value;
+        }
+
+        return table;
+    }
+
+    private static double lookup(final double[] table, final double x) {
+        if (x <= 0) {
+            return table[0];
+        }
+
+        final int i = (int) x;
+
+        if (i >= table.length - 1) {
+            return table[table.length - 1];
+        }
+
+        final double frac = x - i;
+
+        if (frac == 0) {
+            return table[i];
+        }
+
+        return table[i] + frac * (table[i + 1] - table[i]);
+    }
+}
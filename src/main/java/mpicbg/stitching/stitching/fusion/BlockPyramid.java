@@ -0,0 +1,291 @@
+package mpicbg.stitching.stitching.fusion;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Builds the downsampled scale levels (s1, s2, ...) of a chunked dataset
+ * while its full resolution blocks are written, so the full resolution never
+ * has to be read back.
+ * <p>
+ * Every level halves all dimensions that are larger than one. When a block
+ * of a level is complete it is averaged down by 2 and copied into its parent
+ * block of the next level. A parent block is written (and passed on to its
+ * own parent) as soon as all of its children have arrived. The block size has
+ * to be even (or one), then every pixel of a level is the average of pixels
+ * of a single child block.
+ * </p>
+ * <p>
+ * A parent block is kept as float block of the full block size until its
+ * last child arrives. As the blocks are fused roughly in raster order, a
+ * level keeps up to a row (2d) or a plane (3d) of its blocks in memory, plus
+ * the ones started by blocks that are fused out of order, i.e. the pyramid
+ * needs about 4 bytes per pixel of a row or plane of blocks per level on top
+ * of the blocks that are being fused.
+ * </p>
+ */
+public class BlockPyramid {
+
+    private final int numDimensions;
+    private final int[] blockSize;
+
+    // per level (0 is full resolution): dataset, grid and downsampling
+    // factor relative to the previous level
+    private final BlockStore.Dataset[] datasets;
+    private final long[][] gridSizes;
+    private final int[][] factors;
+
+    // the parent blocks that are still waiting for children, per level
+    private final Map<Long, Accumulator>[] pending;
+
+    /**
+     * Creates the datasets {@code <path>/s1} ... {@code <path>/s<numLevels>}.
+     * Levels are only created as long as the previous one is larger than one
+     * pixel.
+     *
+     * @param fullResolution
+     *            - the dataset {@code <path>/s0} the blocks are written to
+     */
+    public BlockPyramid(final BlockStore store, final String path,
+            final BlockStore.Dataset fullResolution, final String dataType,
+            final boolean compress, final int numLevels) throws IOException {
+        blockSize = fullResolution.getBlockSize();
+        numDimensions = blockSize.length;
+
+        for (int d = 0; d < numDimensions; ++d) {
+            if (blockSize[d] > 1 && blockSize[d] % 2 != 0) {
+                throw new IllegalArgumentException(
+                        "The block size has to be even for a pyramid.");
+            }
+        }
+
+        // count the levels that can be created
+        long[] dimensions = fullResolution.getDimensions();
+        int levels = 0;
+        while (levels < numLevels && !isSinglePixel(dimensions)) {
+            dimensions = downsample(dimensions);
+            ++levels;
+        }
+
+        datasets = new BlockStore.Dataset[levels + 1];
+        gridSizes = new long[levels + 1][];
+        factors = new int[levels + 1][numDimensions];
+        pending = new Map[levels + 1];
+
+        datasets[0] = fullResolution;
+        gridSizes[0] = fullResolution.getGridSize();
+        dimensions = fullResolution.getDimensions();
+        final long[] totalFactors = new long[numDimensions];
+
+        for (int d = 0; d < numDimensions; ++d) {
+            totalFactors[d] = 1;
+        }
+
+        for (int l = 1; l <= levels; ++l) {
+            for (int d = 0; d < numDimensions; ++d) {
+                factors[l][d] = dimensions[d] > 1 ? 2 : 1;
+                totalFactors[d] *= factors[l][d];
+            }
+            dimensions = downsample(dimensions);
+
+            datasets[l] =
+                    store.createDataset(path + "/s" + l, dimensions,
+                            blockSize, dataType, compress, totalFactors);
+            gridSizes[l] = datasets[l].getGridSize();
+            pending[l] = new HashMap<Long, Accumulator>();
+        }
+    }
+
+    /**
+     * @return the number of downsampled levels
+     */
+    public int numLevels() {
+        return datasets.length - 1;
+    }
+
+    /**
+     * Adds a full resolution block that has been written. May be called
+     * concurrently for different blocks.
+     *
+     * @param gridPosition
+     *            - the position of the block in the block grid
+     * @param block
+     *            - the pixels of the block, starting at 0
+     */
+    public void addBlock(final long[] gridPosition,
+            final IterableInterval<? extends RealType<?>> block)
+            throws IOException {
+        addBlock(0, gridPosition, block);
+    }
+
+    private void addBlock(final int level, final long[] gridPosition,
+            final IterableInterval<? extends RealType<?>> block)
+            throws IOException {
+        if (level == numLevels()) {
+            return;
+        }
+
+        final int parentLevel = level + 1;
+        final int[] f = factors[parentLevel];
+
+        // the parent block and where this block goes in it
+        final long[] parentPosition = new long[numDimensions];
+        final long[] offset = new long[numDimensions];
+        for (int d = 0; d < numDimensions; ++d) {
+            parentPosition[d] = gridPosition[d] / f[d];
+            offset[d] =
+                    (gridPosition[d] * blockSize[d]) / f[d]
+                            - parentPosition[d] * blockSize[d];
+        }
+
+        final long key = index(parentPosition, gridSizes[parentLevel]);
+        Accumulator parent;
+
+        synchronized (pending[parentLevel]) {
+            parent = pending[parentLevel].get(key);
+            if (parent == null) {
+                parent = new Accumulator(parentLevel, parentPosition);
+                pending[parentLevel].put(key, parent);
+            }
+        }
+
+        final boolean complete;
+        synchronized (parent) {
+            parent.add(block, f, offset);
+            complete = parent.isComplete();
+        }
+
+        if (complete) {
+            synchronized (pending[parentLevel]) {
+                pending[parentLevel].remove(key);
+            }
+
+            final IterableInterval<? extends RealType<?>> parentBlock =
+                    ArrayImgs.floats(parent.data, parent.dimensions);
+            datasets[parentLevel].writeBlock(parentPosition, parentBlock);
+            addBlock(parentLevel, parentPosition, parentBlock);
+        }
+    }
+
+    /**
+     * A block of a downsampled level that is being assembled from the blocks
+     * of the level below.
+     */
+    private class Accumulator {
+        final long[] dimensions;
+        final float[] data;
+        final int expected;
+        int received = 0;
+
+        Accumulator(final int level, final long[] gridPosition) {
+            final long[] levelDimensions = datasets[level].getDimensions();
+            final long[] childGrid = gridSizes[level - 1];
+            final int[] f = factors[level];
+
+            dimensions = new long[numDimensions];
+            long size = 1;
+            int numChildren = 1;
+
+            for (int d = 0; d < numDimensions; ++d) {
+                final long min = gridPosition[d] * blockSize[d];
+                dimensions[d] =
+                        Math.min(blockSize[d], levelDimensions[d] - min);
+                size *= dimensions[d];
+
+                final long firstChild = gridPosition[d] * f[d];
+                numChildren *=
+                        Math.min(childGrid[d], firstChild + f[d]) - firstChild;
+            }
+
+            data = new float[(int) size];
+            expected = numChildren;
+        }
+
+        /**
+         * Averages the child block down and copies it to its offset.
+         */
+        void add(final IterableInterval<? extends RealType<?>> block,
+                final int[] f, final long[] offset) {
+            final long[] childDim = new long[numDimensions];
+            final long[] sampledDim = new long[numDimensions];
+            int sampledSize = 1;
+
+            for (int d = 0; d < numDimensions; ++d) {
+                childDim[d] = block.dimension(d);
+                sampledDim[d] = (childDim[d] + f[d] - 1) / f[d];
+                sampledSize *= sampledDim[d];
+            }
+
+            final double[] sums = new double[sampledSize];
+            final int[] counts = new int[sampledSize];
+            final long[] position = new long[numDimensions];
+            final Cursor<? extends RealType<?>> cursor =
+                    block.localizingCursor();
+
+            while (cursor.hasNext()) {
+                final double value = cursor.next().getRealDouble();
+                cursor.localize(position);
+
+                int i = 0;
+                for (int d = numDimensions - 1; d >= 0; --d) {
+                    i = i * (int) sampledDim[d] + (int) (position[d] / f[d]);
+                }
+                sums[i] += value;
+                ++counts[i];
+            }
+
+            // copy into the parent, raster order of the sampled block
+            for (int i = 0; i < sampledSize; ++i) {
+                int rest = i;
+                int target = 0;
+                int stride = 1;
+
+                for (int d = 0; d < numDimensions; ++d) {
+                    final int p = rest % (int) sampledDim[d];
+                    rest /= (int) sampledDim[d];
+                    target += (p + offset[d]) * stride;
+                    stride *= (int) dimensions[d];
+                }
+
+                data[target] = (float) (sums[i] / counts[i]);
+            }
+
+            ++received;
+        }
+
+        boolean isComplete() {
+            return received == expected;
+        }
+    }
+
+    private static boolean isSinglePixel(final long[] dimensions) {
+        for (int d = 0; d < dimensions.length; ++d) {
+            if (dimensions[d] > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] downsample(final long[] dimensions) {
+        final long[] downsampled = new long[dimensions.length];
+        for (int d = 0; d < dimensions.length; ++d) {
+            downsampled[d] = (dimensions[d] + 1) / 2;
+        }
+        return downsampled;
+    }
+
+    private static long index(final long[] position, final long[] size) {
+        long index = 0;
+        for (int d = position.length - 1; d >= 0; --d) {
+            index = index * size[d] + position[d];
+        }
+        return index;
+    }
+}
@@ -0,0 +1,273 @@
+package mpicbg.stitching.stitching.fusion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Writes fused volumes as chunked block store on the local filesystem, using
+ * the layout of the N5 format so the result can be opened by N5 readers:
+ * <p>
+ * Every dataset is a directory with an {@code attributes.json} describing its
+ * dimensions, block size, data type and compression. Every block is stored
+ * in its own file {@code <dataset>/<x>/<y>/<z>} (named by its position in the
+ * block grid) that starts with an uncompressed header (mode, number of
+ * dimensions and the size of the block) followed by the big-endian pixel
+ * data, optionally gzip compressed. Blocks at the border of the volume are
+ * truncated to the volume.
+ * </p>
+ * Blocks are independent of each other, so they can be written concurrently
+ * and read individually.
+ */
+public class BlockStore {
+
+    public static final String UINT8 = "uint8";
+    public static final String UINT16 = "uint16";
+    public static final String FLOAT32 = "float32";
+
+    private final File root;
+
+    /**
+     * Opens or creates the block store in the given directory.
+     */
+    public BlockStore(final File root) throws IOException {
+        this.root = root;
+
+        mkdirs(root);
+
+        final File attributes = new File(root, "attributes.json");
+        if (!attributes.exists()) {
+            writeText(attributes, "{\"n5\":\"2.0.0\"}");
+        }
+    }
+
+    /**
+     * Creates (or replaces the attributes of) a dataset.
+     *
+     * @param path
+     *            - the path of the dataset relative to the root, e.g. "c0/t0/s0"
+     * @param dimensions
+     *            - the size of the volume
+     * @param blockSize
+     *            - the size of a block
+     * @param dataType
+     *            - one of {@link #UINT8}, {@link #UINT16}, {@link #FLOAT32}
+     * @param compress
+     *            - gzip the blocks
+     */
+    public Dataset createDataset(final String path, final long[] dimensions,
+            final int[] blockSize, final String dataType,
+            final boolean compress) throws IOException {
+        return createDataset(path, dimensions, blockSize, dataType, compress,
+                null);
+    }
+
+    /**
+     * Creates (or replaces the attributes of) a dataset that is a downsampled
+     * version of another one.
+     *
+     * @param downsamplingFactors
+     *            - the factor relative to the full resolution in each
+     *            dimension, stored as "downsamplingFactors" attribute if not
+     *            null
+     */
+    public Dataset createDataset(final String path, final long[] dimensions,
+            final int[] blockSize, final String dataType,
+            final boolean compress, final long[] downsamplingFactors)
+            throws IOException {
+        final File dir = new File(root, path);
+        mkdirs(dir);
+
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"dimensions\":[");
+        for (int d = 0; d < dimensions.length; ++d) {
+            json.append(d == 0 ? "" : ",").append(dimensions[d]);
+        }
+        json.append("],\"blockSize\":[");
+        for (int d = 0; d < blockSize.length; ++d) {
+            json.append(d == 0 ? "" : ",").append(blockSize[d]);
+        }
+        json.append("],\"dataType\":\"").append(dataType).append("\"");
+        if (downsamplingFactors != null) {
+            json.append(",\"downsamplingFactors\":[");
+            for (int d = 0; d < downsamplingFactors.length; ++d) {
+                json.append(d == 0 ? "" : ",").append(downsamplingFactors[d]);
+            }
+            json.append("]");
+        }
+        if (compress) {
+            json.append(",\"compression\":{\"type\":\"gzip\",\"level\":-1}}");
+        } else {
+            json.append(",\"compression\":{\"type\":\"raw\"}}");
+        }
+
+        writeText(new File(dir, "attributes.json"), json.toString());
+
+        return new Dataset(dir, dimensions.clone(), blockSize.clone(),
+                dataType, compress);
+    }
+
+    /**
+     * @return the data type used to store pixels of the given type, all
+     *         types other than 8 and 16 bit unsigned integers are stored as
+     *         float.
+     */
+    public static String dataType(final RealType<?> type) {
+        if (type instanceof UnsignedByteType) {
+            return UINT8;
+        } else if (type instanceof UnsignedShortType) {
+            return UINT16;
+        } else {
+            return FLOAT32;
+        }
+    }
+
+    /**
+     * A single chunked volume of the store.
+     */
+    public static class Dataset {
+        private final File dir;
+        private final long[] dimensions;
+        private final int[] blockSize;
+        private final String dataType;
+        private final boolean compress;
+
+        private Dataset(final File dir, final long[] dimensions,
+                final int[] blockSize, final String dataType,
+                final boolean compress) {
+            this.dir = dir;
+            this.dimensions = dimensions;
+            this.blockSize = blockSize;
+            this.dataType = dataType;
+            this.compress = compress;
+        }
+
+        public long[] getDimensions() {
+            return dimensions.clone();
+        }
+
+        public int[] getBlockSize() {
+            return blockSize.clone();
+        }
+
+        /**
+         * @return the number of blocks along each dimension
+         */
+        public long[] getGridSize() {
+            final long[] gridSize = new long[dimensions.length];
+            for (int d = 0; d < dimensions.length; ++d) {
+                gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            }
+            return gridSize;
+        }
+
+        /**
+         * Writes one block. May be called concurrently for different blocks.
+         *
+         * @param gridPosition
+         *            - the position of the block in the block grid
+         * @param block
+         *            - the pixels of the block, iterated in flat order (x
+         *            fastest), truncated at the border of the volume. Values
+         *            are rounded to the data type of the dataset.
+         */
+        public void writeBlock(final long[] gridPosition,
+                final IterableInterval<? extends RealType<?>> block)
+                throws IOException {
+            File file = dir;
+            for (int d = 0; d < gridPosition.length - 1; ++d) {
+                file = new File(file, Long.toString(gridPosition[d]));
+            }
+            mkdirs(file);
+            file =
+                    new File(file,
+                            Long.toString(gridPosition[gridPosition.length - 1]));
+
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(file)));
+
+            try {
+                // header: mode 0, number of dimensions, size of the block
+                out.writeShort(0);
+                out.writeShort(block.numDimensions());
+                for (int d = 0; d < block.numDimensions(); ++d) {
+                    out.writeInt((int) block.dimension(d));
+                }
+
+                final byte[] data = toBytes(block);
+
+                if (compress) {
+                    final GZIPOutputStream gzip = new GZIPOutputStream(out);
+                    gzip.write(data);
+                    gzip.finish();
+                } else {
+                    out.write(data);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private byte[] toBytes(
+                final IterableInterval<? extends RealType<?>> block) {
+            final int bytesPerPixel =
+                    UINT8.equals(dataType) ? 1 : UINT16.equals(dataType) ? 2
+                            : 4;
+            final ByteBuffer buffer =
+                    ByteBuffer.allocate((int) block.size() * bytesPerPixel);
+            final Cursor<? extends RealType<?>> cursor = block.cursor();
+
+            if (UINT8.equals(dataType)) {
+                while (cursor.hasNext()) {
+                    buffer.put((byte) Math.round(cursor.next()
+                            .getRealDouble()));
+                }
+            } else if (UINT16.equals(dataType)) {
+                while (cursor.hasNext()) {
+                    buffer.putShort((short) Math.round(cursor.next()
+                            .getRealDouble()));
+                }
+            } else {
+                while (cursor.hasNext()) {
+                    buffer.putFloat(cursor.next().getRealFloat());
+                }
+            }
+
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Creates a directory, which may happen concurrently from several threads.
+     */
+    private static void mkdirs(final File dir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+    }
+
+    private static void writeText(final File file, final String text)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
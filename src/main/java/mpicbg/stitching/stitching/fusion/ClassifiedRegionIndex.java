@@ -0,0 +1,221 @@
+/**
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * An execption is the FFT implementation of Dave Hale which we use as a library,
+ * wich is released under the terms of the Common Public License - v1.0, which is
+ * available at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * @author Mark Hiner, Stephan Preibisch
+ */
+
+package mpicbg.stitching.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spatial index over a set of {@link ClassifiedRegion}s. Space is divided into
+ * a regular grid of cells and every region is registered in each cell it
+ * touches, so an intersection query only has to look at the regions that share
+ * a cell with the query instead of at every region in the set.
+ * <p>
+ * The cell size should be in the order of the size of the indexed regions
+ * (e.g. the average tile size), which keeps both the number of cells per
+ * region and the number of regions per cell small.
+ * </p>
+ */
+public class ClassifiedRegionIndex {
+
+    private final int[] cellSize;
+    private final Map<Long, List<ClassifiedRegion>> cells =
+            new HashMap<Long, List<ClassifiedRegion>>();
+    private final Set<ClassifiedRegion> regions =
+            new LinkedHashSet<ClassifiedRegion>();
+
+    /**
+     * Creates an empty index using the given cell size for each dimension.
+     */
+    public ClassifiedRegionIndex(final int[] cellSize) {
+        this.cellSize = cellSize.clone();
+        for (int d = 0; d < cellSize.length; d++) {
+            if (cellSize[d] < 1) {
+                throw new IllegalArgumentException(
+                        "Cell size must be at least 1");
+            }
+        }
+    }
+
+    /**
+     * Adds a region to this index.
+     */
+    public void add(final ClassifiedRegion region) {
+        if (!regions.add(region)) {
+            return;
+        }
+
+        final int[] min = new int[cellSize.length];
+        final int[] max = new int[cellSize.length];
+        final int[] cell = cellRange(region, min, max);
+
+        do {
+            final Long key = key(cell);
+            List<ClassifiedRegion> bucket = cells.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<ClassifiedRegion>(4);
+                cells.put(key, bucket);
+            }
+            bucket.add(region);
+        } while (nextCell(cell, min, max));
+    }
+
+    /**
+     * Removes a region from this index.
+     */
+    public void remove(final ClassifiedRegion region) {
+        if (!regions.remove(region)) {
+            return;
+        }
+
+        final int[] min = new int[cellSize.length];
+        final int[] max = new int[cellSize.length];
+        final int[] cell = cellRange(region, min, max);
+
+        do {
+            final Long key = key(cell);
+            final List<ClassifiedRegion> bucket = cells.get(key);
+            if (bucket != null) {
+                bucket.remove(region);
+                if (bucket.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        } while (nextCell(cell, min, max));
+    }
+
+    /**
+     * @return Any indexed region that intersects the query region, or
+     *         {@code null} if there is none.
+     */
+    public ClassifiedRegion findIntersecting(final ClassifiedRegion query) {
+        final int[] min = new int[cellSize.length];
+        final int[] max = new int[cellSize.length];
+        final int[] cell = cellRange(query, min, max);
+
+        do {
+            final List<ClassifiedRegion> bucket = cells.get(key(cell));
+            if (bucket != null) {
+                for (int i = 0; i < bucket.size(); i++) {
+                    final ClassifiedRegion candidate = bucket.get(i);
+                    if (query.intersects(candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+        } while (nextCell(cell, min, max));
+
+        return null;
+    }
+
+    /**
+     * @return All indexed regions that intersect the query region, each of
+     *         them once.
+     */
+    public List<ClassifiedRegion> findAllIntersecting(
+            final ClassifiedRegion query) {
+        final Set<ClassifiedRegion> found =
+                new LinkedHashSet<ClassifiedRegion>();
+        final int[] min = new int[cellSize.length];
+        final int[] max = new int[cellSize.length];
+        final int[] cell = cellRange(query, min, max);
+
+        do {
+            final List<ClassifiedRegion> bucket = cells.get(key(cell));
+            if (bucket != null) {
+                for (int i = 0; i < bucket.size(); i++) {
+                    final ClassifiedRegion candidate = bucket.get(i);
+                    if (query.intersects(candidate)) {
+                        found.add(candidate);
+                    }
+                }
+            }
+        } while (nextCell(cell, min, max));
+
+        return new ArrayList<ClassifiedRegion>(found);
+    }
+
+    /**
+     * @return All regions currently in this index, in insertion order.
+     */
+    public List<ClassifiedRegion> regions() {
+        return new ArrayList<ClassifiedRegion>(regions);
+    }
+
+    /**
+     * @return The number of regions in this index.
+     */
+    public int size() {
+        return regions.size();
+    }
+
+    /**
+     * Computes the range of cells covered by the given region and returns
+     * the first cell of that range.
+     */
+    private int[] cellRange(final ClassifiedRegion region, final int[] min,
+            final int[] max) {
+        for (int d = 0; d < cellSize.length; d++) {
+            min[d] = floorDiv(region.get(d).min(), cellSize[d]);
+            max[d] = floorDiv(region.get(d).max(), cellSize[d]);
+        }
+        return min.clone();
+    }
+
+    /**
+     * Moves to the next cell of the range in raster order.
+     *
+     * @return false if the whole range has been visited
+     */
+    private static boolean nextCell(final int[] cell, final int[] min,
+            final int[] max) {
+        for (int d = 0; d < cell.length; d++) {
+            if (cell[d] < max[d]) {
+                cell[d]++;
+                return true;
+            }
+            cell[d] = min[d];
+        }
+        return false;
+    }
+
+    /**
+     * Hashes a cell position. Collisions are harmless, they just put a few
+     * more candidates into a bucket.
+     */
+    private static Long key(final int[] cell) {
+        long key = 0;
+        for (int d = 0; d < cell.length; d++) {
+            key = key * 0x9E3779B97F4A7C15L + cell[d];
+        }
+        return key;
+    }
+
+    private static int floorDiv(final int x, final int y) {
+        final int q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
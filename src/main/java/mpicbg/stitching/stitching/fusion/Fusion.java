@@ -7,43 +7,54 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
+import ij.process.ImageProcessor;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AbstractAffineModel3D;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.NoninvertibleModelException;
 import mpicbg.stitching.math.CommonFunctions.FusionType;
 import mpicbg.stitching.utils.CompositeImageFixer;
 import mpicbg.stitching.utils.Log;
+import mpicbg.stitching.utils.Memory;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.multithreading.Chunk;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 /**
  * Manages the fusion for all types except the overlayfusion
@@ -54,6 +65,74 @@ import net.imglib2.type.numeric.real.FloatType;
 public class Fusion {
     public static long redrawDelay = 500;
 
+    /**
+     * Use the scanline kernel for 2d/3d fusion with affine models, which
+     * transforms the input positions once per row instead of once per pixel
+     */
+    public static boolean scanlineFusion = true;
+
+    /**
+     * Lower bound for the number of pixels fused by one task of the fusion
+     * pool, smaller regions are not split any further
+     */
+    public static long minPixelsPerTask = 16384;
+
+    /**
+     * Number of slices that are fused concurrently when writing to disk, each
+     * of them needs its own slice buffer
+     */
+    public static int writeQueueLength =
+            2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Fuse independent channels/timepoints concurrently when fusing into
+     * memory, as many as fit into {@link #volumeMemoryFraction} of the
+     * available heap
+     */
+    public static boolean concurrentVolumeFusion = true;
+
+    /**
+     * Fraction of the available heap that may be used by the volumes that are
+     * fused concurrently
+     */
+    public static double volumeMemoryFraction = 0.5;
+
+    /**
+     * When writing to disk, write each channel/timepoint as a chunked block
+     * store (see {@link BlockStore}) instead of one image per slice
+     */
+    public static boolean chunkedOutput = false;
+
+    /**
+     * Size of the blocks of the chunked output, per dimension
+     */
+    public static int[] chunkSize = new int[] { 128, 128, 64 };
+
+    /**
+     * Gzip the blocks of the chunked output
+     */
+    public static boolean compressChunks = true;
+
+    /**
+     * Number of downsampled scale levels (2x, 4x, ...) that are built while
+     * writing the chunked output, see {@link BlockPyramid}
+     */
+    public static int pyramidLevels = 0;
+
+    /**
+     * When writing 3d slices to disk, only load the slices of the inputs that
+     * are needed for this many output slices at a time. 0 loads the complete
+     * inputs. This only saves memory for virtual stacks (and the float copies
+     * of color images), the slices of other stacks are in memory anyway.
+     */
+    public static int slabThickness = 0;
+
+    /**
+     * Number of blocks (of {@link #chunkSize}) kept in memory by a lazily
+     * fused image, see {@link #fuseLazy}
+     */
+    public static int lazyCacheSize = 512;
+
     /**
      *
      * @param targetType
@@ -72,6 +151,28 @@ public class Fusion {
             final String fusionType, final String outputDirectory,
             final boolean noOverlap, final boolean ignoreZeroValues,
             final boolean displayImages) {
+        return fuse(targetType, images, models, dimensionality,
+                subpixelResolution, fusionType, outputDirectory, noOverlap,
+                ignoreZeroValues, displayImages, chunkedOutput, slabThickness);
+    }
+
+    /**
+     * Fuses like {@link #fuse}, with the way the output is written to disk
+     * given instead of taken from the configuration.
+     *
+     * @param chunked
+     *            - write chunks instead of slices, see {@link #chunkedOutput}
+     * @param slab
+     *            - the slab thickness, see {@link #slabThickness}
+     */
+    private static <T extends RealType<T> & NativeType<T>> ImagePlus fuse(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final String outputDirectory,
+            final boolean noOverlap, final boolean ignoreZeroValues,
+            final boolean displayImages, final boolean chunked,
+            final int slab) {
         // first we need to estimate the boundaries of the new image
         final double[] offset = new double[dimensionality];
         final int[] size = new int[dimensionality];
@@ -86,8 +187,14 @@ public class Fusion {
             }
         }
 
-        // for output
-        final ImgFactory<T> f = new ImagePlusImgFactory<T>();
+        // the planes of the output are ImageJ arrays, unless the output is
+        // written as chunks
+        if ((outputDirectory == null || !chunked) && !fitsImagePlus(size)) {
+            Log.error("The fused image (" + size[0] + "x" + size[1]
+                    + " pixels per plane) is too large for ImageJ, use "
+                    + "fuseToImg() or chunked output instead.");
+            return null;
+        }
 
         // the final composite
         final ImageStack stack;
@@ -99,214 +206,499 @@ public class Fusion {
             stack = null;
         }
 
-        // "Overlay into composite image"
-        for (int t = 1; t <= numTimePoints; ++t) {
-            for (int c = 1; c <= numChannels; ++c) {
-                IJ.showStatus("Fusing time point: " + t + " of "
-                        + numTimePoints + ", " + "channel: " + c + " of "
-                        + numChannels + "...");
-                // create the 2d/3d target image for the current channel and
-                // timepoint
-                final Img<T> out;
+        // the geometry only depends on the models and the image sizes, so the
+        // region decomposition, the pool and the per-thread scaffolding are
+        // shared by all channels and timepoints
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), models, offset);
+
+        final VolumeFuser<T> fuser =
+                new VolumeFuser<T>(targetType, images, models, size, offset,
+                        subpixelResolution, fusionType, outputDirectory,
+                        noOverlap, ignoreZeroValues, chunked, slab);
+
+        // independent volumes can only be fused concurrently into memory,
+        // writing to disk already fuses several slices at once
+        final int numVolumes = numTimePoints * numChannels;
+        final int concurrentVolumes;
+
+        if (concurrentVolumeFusion && outputDirectory == null && numVolumes > 1) {
+            concurrentVolumes =
+                    numConcurrentVolumes(fuser.estimateBytes(), numVolumes);
+        } else {
+            concurrentVolumes = 1;
+        }
 
-                // we just create one slice if we write to disk
-                if (outputDirectory == null) {
-                    out = f.create(size, targetType);
-                } else {
-                    out = f.create(new int[] { size[0], size[1] }, targetType); // just
-                    // create
-                    // a
-                    // slice
+        try {
+            if (concurrentVolumes > 1) {
+                fuseConcurrently(fuser, context, stack, numTimePoints,
+                        numChannels, concurrentVolumes);
+            } else {
+                // "Overlay into composite image"
+                for (int t = 1; t <= numTimePoints; ++t) {
+                    for (int c = 1; c <= numChannels; ++c) {
+                        IJ.showStatus("Fusing time point: " + t + " of "
+                                + numTimePoints + ", " + "channel: " + c
+                                + " of " + numChannels + "...");
+
+                        addToStack(stack,
+                                fuser.fuse(c, t, context, displayImages));
+                    }
                 }
+            }
+        } finally {
+            context.shutdown();
+        }
 
-                // init the fusion
-                PixelFusion fusion = null;
+        IJ.showStatus("Fusion complete.");
 
-                
-                
-                if (FusionType.LINEAR_BLENDING.equals(fusionType)) {
-                    if (ignoreZeroValues) {
-                        fusion = new AveragePixelFusionIgnoreZero();
-                    } else {
-                        fusion = new AveragePixelFusion();
-                    }
-                } else if (FusionType.AVERAGE.equals(fusionType)) {
-                    if (ignoreZeroValues) {
-                        fusion = new MedianPixelFusionIgnoreZero();
-                    } else {
-                        fusion = new MedianPixelFusion();
-                    }
-                } else if (FusionType.MEDIAN.equals(fusionType)) {
-                    if (ignoreZeroValues) {
-                        fusion = new MaxPixelFusionIgnoreZero();
-                    } else {
-                        fusion = new MaxPixelFusion();
-                    }
-                } else if (FusionType.MAX_INTENSITY.equals(fusionType)) {
-                    if (ignoreZeroValues) {
-                        fusion = new MinPixelFusionIgnoreZero();
+        // reset the progress bar
+        IJ.showProgress(1.01);
+
+        // has been written to disk ...
+        if (stack == null) {
+            return null;
+        }
+
+        return createResult(stack, dimensionality, size, numChannels,
+                numTimePoints);
+    }
+
+    /**
+     * Fuses like {@link #fuse}, but first predicts the memory needed (see
+     * {@link FusionPlanner}), logs the estimate and chooses how to produce
+     * the output within the available heap. Without an output directory the
+     * image is only fused if it fits into memory.
+     */
+    public static <T extends RealType<T> & NativeType<T>> ImagePlus fusePlanned(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final String outputDirectory,
+            final boolean noOverlap, final boolean ignoreZeroValues,
+            final boolean displayImages) {
+        final FusionPlanner planner =
+                new FusionPlanner(targetType, images, models, dimensionality,
+                        subpixelResolution);
+        final long available = Memory.availableHeap();
+        final FusionPlanner.Strategy strategy =
+                planner.choose(available, outputDirectory == null);
+
+        Log.info(planner.report());
+        Log.info("Available heap: " + available / (1024 * 1024)
+                + " MB, fusing " + strategy + " (~"
+                + planner.estimateBytes(strategy) / (1024 * 1024) + " MB)");
+
+        if (strategy == FusionPlanner.Strategy.IN_MEMORY) {
+            return fuse(targetType, images, models, dimensionality,
+                    subpixelResolution, fusionType, null, noOverlap,
+                    ignoreZeroValues, displayImages);
+        }
+
+        if (outputDirectory == null) {
+            Log.error("The fused image does not fit into memory, please "
+                    + "choose an output directory.");
+            return null;
+        }
+
+        if (planner.estimateBytes(strategy) > available) {
+            Log.error("The fusion will probably run out of memory.");
+        }
+
+        return fuse(targetType, images, models, dimensionality,
+                subpixelResolution, fusionType, outputDirectory, noOverlap,
+                ignoreZeroValues, displayImages,
+                strategy == FusionPlanner.Strategy.CHUNKED,
+                strategy == FusionPlanner.Strategy.SLABS ? planner
+                        .slabThickness() : 0);
+    }
+
+    /**
+     * Fuses only a part of the output: a crop of the output image, a range of
+     * timepoints and a subset of the channels. Only the images that intersect
+     * the crop are decomposed into regions and interpolated.
+     *
+     * @param cropMin
+     *            - the first pixel of the crop, in coordinates of the image
+     *            {@link #fuse} would create
+     * @param cropMax
+     *            - the last pixel of the crop (inclusive), it is clipped to
+     *            the output image
+     * @param firstTimePoint
+     *            - the first timepoint to fuse, starting at 1
+     * @param lastTimePoint
+     *            - the last timepoint to fuse (inclusive)
+     * @param channels
+     *            - the channels to fuse, starting at 1
+     * @return the fused crop, null if the crop is outside of the output image
+     */
+    public static <T extends RealType<T> & NativeType<T>> ImagePlus fuseInterval(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final boolean ignoreZeroValues,
+            final long[] cropMin, final long[] cropMax,
+            final int firstTimePoint, final int lastTimePoint,
+            final int[] channels) {
+        // the output image the crop refers to
+        final double[] offset = new double[dimensionality];
+        final int[] size = new int[dimensionality];
+
+        estimateBounds(offset, size, images, models, dimensionality);
+
+        if (subpixelResolution) {
+            for (int d = 0; d < size.length; ++d) {
+                ++size[d];
+            }
+        }
+
+        // clip the crop, the fusion of the crop is a fusion with a shifted
+        // offset
+        final int[] cropSize = new int[dimensionality];
+        final double[] cropOffset = new double[dimensionality];
+
+        for (int d = 0; d < dimensionality; ++d) {
+            final long min = Math.max(0, cropMin[d]);
+            final long max = Math.min(size[d] - 1, cropMax[d]);
+
+            if (max < min) {
+                Log.error("The crop is outside of the fused image.");
+                return null;
+            }
+
+            cropSize[d] = (int) (max - min + 1);
+            cropOffset[d] = offset[d] + min;
+        }
+
+        if (!fitsImagePlus(cropSize)) {
+            Log.error("The crop is too large for ImageJ, use fuseToImg() "
+                    + "instead.");
+            return null;
+        }
+
+        // only keep the images that intersect the crop, one pixel more for
+        // the interpolation
+        final ArrayList<ImagePlus> cropImages = new ArrayList<ImagePlus>();
+        final ArrayList<InvertibleBoundable> cropModels =
+                new ArrayList<InvertibleBoundable>();
+
+        for (int i = 0; i < images.size(); ++i) {
+            final ImagePlus imp = images.get(i);
+            final double[] min = new double[dimensionality];
+            final double[] max = new double[dimensionality];
+
+            max[0] = imp.getWidth();
+            max[1] = imp.getHeight();
+            if (dimensionality == 3) {
+                max[2] = imp.getNSlices();
+            }
+
+            models.get(i).estimateBounds(min, max);
+
+            boolean intersects = true;
+            for (int d = 0; d < dimensionality; ++d) {
+                // the image might be rotated so that min is actually max
+                final double imgMin = Math.min(min[d], max[d]) - cropOffset[d];
+                final double imgMax = Math.max(min[d], max[d]) - cropOffset[d];
+
+                intersects &= imgMax >= -1 && imgMin <= cropSize[d];
+            }
+
+            if (intersects) {
+                cropImages.add(imp);
+                cropModels.add(models.get(i));
+            }
+        }
+
+        final int numTimePoints = lastTimePoint - firstTimePoint + 1;
+        final ImageStack stack = new ImageStack(cropSize[0], cropSize[1]);
+
+        IJ.showStatus("Fusing " + cropImages.size() + " of " + images.size()
+                + " images into the crop...");
+
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), cropModels, cropOffset);
+
+        try {
+            final VolumeFuser<T> fuser =
+                    new VolumeFuser<T>(targetType, cropImages, cropModels,
+                            cropSize, cropOffset, subpixelResolution,
+                            fusionType, null, false, ignoreZeroValues);
+
+            for (int t = firstTimePoint; t <= lastTimePoint; ++t) {
+                for (final int c : channels) {
+                    if (cropImages.isEmpty()) {
+                        addToStack(stack, new ImagePlusImgFactory<T>().create(
+                                cropSize, targetType));
                     } else {
-                        fusion = new MinPixelFusion();
+                        addToStack(stack, fuser.fuse(c, t, context, false));
                     }
-                } else if (FusionType.MIN_INTENSITY.equals(fusionType)) {
-                    fusion = new OverlapFusion();
-                } else if (FusionType.INTENSITY_RANDOM_TILE.equals(fusionType)) {
-                } else if (FusionType.NO_FUSE.equals(fusionType)) {
-                } else if (FusionType.OVERLAY.equals(fusionType)) {
-                } else {
-                    throw new IllegalStateException(
-                            "This case was not considered !!!");
                 }
+            }
+        } finally {
+            context.shutdown();
+        }
 
-                // extract the complete blockdata
-                if (subpixelResolution) {
-                    final ArrayList<ImageInterpolation<FloatType>> blockData =
-                            new ArrayList<ImageInterpolation<FloatType>>();
-
-                    // for linear interpolation we want to mirror, otherwise we
-                    // get black areas at the first and last pixel of each image
-                    final InterpolatorFactory<FloatType, RandomAccessible<FloatType>> interpolatorFactory =
-                            new NLinearInterpolatorFactory<FloatType>();// new
-                    // OutOfBoundsStrategyMirrorFactory<FloatType>()
-                    // );
-
-                    for (final ImagePlus imp : images) {
-                        blockData.add(new ImageInterpolation<FloatType>(
-                                ImageJFunctions
-                                        .convertFloat(Hyperstack_rearranger
-                                                .getImageChunk(imp, c, t)),
-                                interpolatorFactory, true));
-                    }
+        IJ.showStatus("Fusion complete.");
 
-                    // init blending with the images
-                    if (fusionType == FusionType.LINEAR_BLENDING) {
-                        if (ignoreZeroValues) {
-                            fusion =
-                                    new BlendingPixelFusionIgnoreZero(blockData);
-                        } else {
-                            fusion = new BlendingPixelFusion(blockData);
-                        }
-                    }
+        // reset the progress bar
+        IJ.showProgress(1.01);
 
-                    if (outputDirectory == null) {
-                        fuseBlock(out, blockData, offset, models, fusion,
-                                displayImages);
-                    } else {
-                        final int numSlices;
+        return createResult(stack, dimensionality, cropSize,
+                channels.length, numTimePoints);
+    }
 
-                        if (dimensionality == 2) {
-                            numSlices = 1;
-                        } else {
-                            numSlices = size[2];
-                        }
+    /**
+     * Updates a fused image after the models of some images have changed,
+     * e.g. after a tile was moved during a manual review. Only the parts of
+     * the output that are covered by a changed image before or after the
+     * change are fused again, the rest of the output is kept. The regions of
+     * the decomposition an image belongs to exactly cover its bounds, so
+     * these are the only regions that can differ.
+     * <p>
+     * If the bounds of the output change, or the previous image does not
+     * match the output, everything is fused again with
+     * {@link #fuse}. Corresponds to a fusion without noOverlap.
+     * </p>
+     *
+     * @param previous
+     *            - the image {@link #fuse} created with the old models, it is
+     *            updated in place
+     * @param oldModels
+     *            - the models previous has been fused with
+     * @param newModels
+     *            - the changed models
+     * @return previous, or a new image if everything had to be fused again
+     */
+    public static <T extends RealType<T> & NativeType<T>> ImagePlus refuse(
+            final T targetType, final ImagePlus previous,
+            final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> oldModels,
+            final ArrayList<InvertibleBoundable> newModels,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final boolean ignoreZeroValues) {
+        final double[] oldOffset = new double[dimensionality];
+        final int[] oldSize = new int[dimensionality];
+        final double[] offset = new double[dimensionality];
+        final int[] size = new int[dimensionality];
+        final int numTimePoints = images.get(0).getNFrames();
+        final int numChannels = images.get(0).getNChannels();
+
+        estimateBounds(oldOffset, oldSize, images, oldModels, dimensionality);
+        estimateBounds(offset, size, images, newModels, dimensionality);
+
+        if (subpixelResolution) {
+            for (int d = 0; d < size.length; ++d) {
+                ++oldSize[d];
+                ++size[d];
+            }
+        }
+
+        final boolean matches =
+                previous != null && previous.getWidth() == size[0]
+                        && previous.getHeight() == size[1]
+                        && previous.getNSlices() == (dimensionality == 3
+                                ? size[2] : 1)
+                        && previous.getNChannels() == numChannels
+                        && previous.getNFrames() == numTimePoints;
+
+        if (!Arrays.equals(oldOffset, offset) || !Arrays.equals(oldSize, size)
+                || !matches) {
+            Log.info("The bounds of the fused image changed, fusing everything.");
+            return fuse(targetType, images, newModels, dimensionality,
+                    subpixelResolution, fusionType, null, false,
+                    ignoreZeroValues, false);
+        }
+
+        // the boxes of the output that are covered by a changed image, before
+        // and after the change
+        final List<long[][]> boxes = new ArrayList<long[][]>();
+
+        for (int i = 0; i < images.size(); ++i) {
+            if (!changed(images.get(i), oldModels.get(i), newModels.get(i),
+                    dimensionality)) {
+                continue;
+            }
+
+            addBox(boxes, images.get(i), oldModels.get(i), offset, size);
+            addBox(boxes, images.get(i), newModels.get(i), offset, size);
+        }
+
+        if (boxes.isEmpty()) {
+            return previous;
+        }
+
+        Log.info("Fusing " + boxes.size() + " changed boxes again.");
+
+        final VolumeFuser<T> volumeFuser =
+                new VolumeFuser<T>(targetType, images, newModels, size, offset,
+                        subpixelResolution, fusionType, null, false,
+                        ignoreZeroValues);
+
+        final int[] blockSize = new int[dimensionality];
+        for (int d = 0; d < dimensionality; ++d) {
+            blockSize[d] =
+                    Math.max(1, Math.min(size[d],
+                            chunkSize[Math.min(d, chunkSize.length - 1)]));
+        }
+
+        // the decomposition is shared by all channels and timepoints
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), newModels, offset);
+
+        try {
+            for (int t = 1; t <= numTimePoints; ++t) {
+                for (int c = 1; c <= numChannels; ++c) {
+                    IJ.showStatus("Updating time point: " + t + " of "
+                            + numTimePoints + ", " + "channel: " + c + " of "
+                            + numChannels + "...");
 
-                        writeBlock(out, numSlices, t, numTimePoints, c,
-                                numChannels, blockData, offset, models, fusion,
-                                outputDirectory);
-                    }
-                } else {
-                    // can be a mixture of different RealTypes
                     final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
-                            new ArrayList<ImageInterpolation<? extends RealType<?>>>();
-
-                    final InterpolatorFactory<FloatType, RandomAccessible<FloatType>> interpolatorFactoryFloat =
-                            new NearestNeighborInterpolatorFactory<FloatType>();// new
-                    // OutOfBoundsStrategyValueFactory<FloatType>()
-                    // );
-                    final InterpolatorFactory<UnsignedShortType, RandomAccessible<UnsignedShortType>> interpolatorFactoryShort =
-                            new NearestNeighborInterpolatorFactory<UnsignedShortType>();// new
-                    // OutOfBoundsStrategyValueFactory<UnsignedShortType>()
-                    // );
-                    final InterpolatorFactory<UnsignedByteType, RandomAccessible<UnsignedByteType>> interpolatorFactoryByte =
-                            new NearestNeighborInterpolatorFactory<UnsignedByteType>();// new
-                    // OutOfBoundsStrategyValueFactory<UnsignedByteType>()
-                    // );
-
-                    for (final ImagePlus imp : images) {
-                        if (imp.getType() == ImagePlus.GRAY32) {
-                            blockData.add(new ImageInterpolation<FloatType>(
-                                    ImageJFunctions
-                                            .wrapFloat(Hyperstack_rearranger
-                                                    .getImageChunk(imp, c, t)),
-                                    interpolatorFactoryFloat, false));
-                        } else if (imp.getType() == ImagePlus.GRAY16) {
-                            blockData
-                                    .add(new ImageInterpolation<UnsignedShortType>(
-                                            ImageJFunctions
-                                                    .wrapShort(Hyperstack_rearranger
-                                                            .getImageChunk(imp,
-                                                                    c, t)),
-                                            interpolatorFactoryShort, false));
-                        } else {
-                            blockData
-                                    .add(new ImageInterpolation<UnsignedByteType>(
-                                            ImageJFunctions
-                                                    .wrapByte(Hyperstack_rearranger
-                                                            .getImageChunk(imp,
-                                                                    c, t)),
-                                            interpolatorFactoryByte, false));
-                        }
-                    }
+                            volumeFuser.createBlockData(c, t);
+                    final PixelFusion fusion =
+                            volumeFuser.createFusion(blockData);
 
-                    // init blending with the images
-                    if (fusionType == FusionType.LINEAR_BLENDING) {
-                        if (ignoreZeroValues) {
-                            fusion =
-                                    new BlendingPixelFusionIgnoreZero(blockData);
-                        } else {
-                            fusion = new BlendingPixelFusion(blockData);
-                        }
+                    if (fusion == null) {
+                        throw new IllegalArgumentException(
+                                "Cannot update a fusion with " + fusionType);
                     }
 
-                    if (outputDirectory == null) {
-                        if (noOverlap) {
-                            fuseBlockNoOverlap(out, blockData, offset, models,
-                                    displayImages);
-                        } else {
-                            fuseBlock(out, blockData, offset, models, fusion,
-                                    displayImages);
-                        }
-                    } else {
-                        final int numSlices;
+                    final BlockFuser<T> fuser =
+                            new BlockFuser<T>(context, blockData, fusion,
+                                    blockSize);
 
-                        if (dimensionality == 2) {
-                            numSlices = 1;
-                        } else {
-                            numSlices = size[2];
+                    for (final long[][] box : boxes) {
+                        final long[] dim = new long[dimensionality];
+                        for (int d = 0; d < dimensionality; ++d) {
+                            dim[d] = box[1][d] - box[0][d] + 1;
                         }
 
-                        writeBlock(out, numSlices, t, numTimePoints, c,
-                                numChannels, blockData, offset, models, fusion,
-                                outputDirectory);
+                        final Img<T> buffer =
+                                new ArrayImgFactory<T>().create(dim,
+                                        targetType.createVariable());
+                        invoke(context.pool, new BoxTask<T>(fuser, Views
+                                .translate(buffer, box[0]), blockSize));
+                        copyToImage(buffer, box[0], previous, c, t);
                     }
-                }
 
-                // add to stack
-                try {
-                    if (stack != null) {
-                        final ImagePlus outImp =
-                                ((ImagePlusImg<?, ?>) out).getImagePlus();
-                        for (int z = 1; z <= out.dimension(2); ++z) {
-                            stack.addSlice("", outImp.getStack()
-                                    .getProcessor(z));
-                        }
-                    }
-                } catch (final ImgLibException e) {
-                    Log.error("Output image has no ImageJ type: " + e);
+                    context.release();
                 }
             }
+        } catch (final RuntimeException e) {
+            if (isNoninvertible(e)) {
+                Log.error("Cannot invert model, quitting.");
+                return previous;
+            }
+            throw e;
+        } finally {
+            context.shutdown();
         }
 
         IJ.showStatus("Fusion complete.");
+        previous.updateAndDraw();
 
-        // reset the progress bar
-        IJ.showProgress(1.01);
+        return previous;
+    }
 
-        // has been written to disk ...
-        if (stack == null) {
-            return null;
+    /**
+     * @return if the image is at a different place with the new model, which
+     *         is the case if any of its corners moved.
+     */
+    private static boolean changed(final ImagePlus imp,
+            final InvertibleBoundable oldModel,
+            final InvertibleBoundable newModel, final int dimensionality) {
+        final double[] size = new double[] { imp.getWidth(), imp.getHeight(),
+                imp.getNSlices() };
+
+        for (int corner = 0; corner < 1 << dimensionality; ++corner) {
+            final double[] a = new double[dimensionality];
+            for (int d = 0; d < dimensionality; ++d) {
+                a[d] = (corner & (1 << d)) == 0 ? 0 : size[d];
+            }
+            final double[] b = a.clone();
+
+            oldModel.applyInPlace(a);
+            newModel.applyInPlace(b);
+
+            if (!Arrays.equals(a, b)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the bounding box of the output covered by the image, one pixel
+     * larger for the interpolation and clipped to the output, if it is not
+     * empty.
+     */
+    private static void addBox(final List<long[][]> boxes,
+            final ImagePlus imp, final InvertibleBoundable model,
+            final double[] offset, final int[] size) {
+        final int n = offset.length;
+        final double[] min = new double[n];
+        final double[] max = new double[n];
+        final long[][] box = new long[2][n];
+
+        max[0] = imp.getWidth();
+        max[1] = imp.getHeight();
+        if (n == 3) {
+            max[2] = imp.getNSlices();
+        }
+
+        model.estimateBounds(min, max);
+
+        for (int d = 0; d < n; ++d) {
+            // the image might be rotated so that min is actually max
+            final double imgMin = Math.min(min[d], max[d]) - offset[d];
+            final double imgMax = Math.max(min[d], max[d]) - offset[d];
+
+            box[0][d] = Math.max(0, (long) Math.floor(imgMin) - 1);
+            box[1][d] = Math.min(size[d] - 1, (long) Math.ceil(imgMax) + 1);
+            if (box[1][d] < box[0][d]) {
+                return;
+            }
+        }
+
+        boxes.add(box);
+    }
+
+    /**
+     * Copies a fused box into channel c and timepoint t of a fused image.
+     */
+    private static <T extends RealType<T>> void copyToImage(
+            final Img<T> box, final long[] min, final ImagePlus imp,
+            final int c, final int t) {
+        final Cursor<T> cursor = box.localizingCursor();
+        final ImageStack stack = imp.getStack();
+        final int width = imp.getWidth();
+        int lastZ = -1;
+        ImageProcessor ip = null;
+
+        while (cursor.hasNext()) {
+            final float value = cursor.next().getRealFloat();
+            final int x = (int) (cursor.getLongPosition(0) + min[0]);
+            final int y = (int) (cursor.getLongPosition(1) + min[1]);
+            final int z =
+                    box.numDimensions() > 2 ? (int) (cursor
+                            .getLongPosition(2) + min[2]) : 0;
+
+            if (z != lastZ) {
+                ip = stack.getProcessor(imp.getStackIndex(c, z + 1, t));
+                lastZ = z;
+            }
+
+            ip.setf(y * width + x, value);
         }
+    }
 
+    /**
+     * Creates the (composite) image from a stack in XYZCT order.
+     */
+    private static ImagePlus createResult(final ImageStack stack,
+            final int dimensionality, final int[] size,
+            final int numChannels, final int numTimePoints) {
         // convertXYZCT ...
         ImagePlus result = new ImagePlus("", stack);
 
@@ -331,111 +723,770 @@ public class Fusion {
     }
 
     /**
-     * Fuse one slice/volume (one channel)
+     * Creates a fused image of one channel and timepoint that is only fused
+     * where it is accessed, in blocks of {@link #chunkSize}, see
+     * {@link LazyFusion}. Only the region decomposition is computed up front.
      *
-     * @param output
-     *            - same the type of the ImagePlus input
-     * @param input
-     *            - FloatType, because of Interpolation that needs to be done
-     * @param transform
-     *            - the transformation
+     * @param c
+     *            - the channel, starting at 1
+     * @param t
+     *            - the timepoint, starting at 1
      */
-    protected static <T extends RealType<T>> void fuseBlock(
-            final Img<T> output,
-            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-            final double[] offset,
-            final ArrayList<InvertibleBoundable> transform,
-            final PixelFusion fusion, final boolean displayFusion) {
-        final int numDimensions = output.numDimensions();
-        final int numImages = input.size();
-        long size = output.dimension(0);
+    public static <T extends RealType<T> & NativeType<T>> LazyFusion<T> fuseLazy(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final boolean ignoreZeroValues,
+            final int c, final int t) {
+        final double[] offset = new double[dimensionality];
+        final int[] size = new int[dimensionality];
 
-        for (int d = 1; d < output.numDimensions(); ++d) {
-            size *= output.dimension(d);
-        }
+        estimateBounds(offset, size, images, models, dimensionality);
 
-        final List<ClassifiedRegion> tiles =
-                buildTileList(numImages, numDimensions, transform, input,
-                        offset);
+        final long[] dimensions = new long[dimensionality];
+        final int[] blockSize = new int[dimensionality];
 
-        IJ.showProgress(0);
+        for (int d = 0; d < dimensionality; ++d) {
+            if (subpixelResolution) {
+                ++size[d];
+            }
+            dimensions[d] = size[d];
+            blockSize[d] =
+                    Math.max(1, Math.min(size[d],
+                            chunkSize[Math.min(d, chunkSize.length - 1)]));
+        }
 
-        final ImagePlus[] fusionImp = new ImagePlus[1];
+        final VolumeFuser<T> fuser =
+                new VolumeFuser<T>(targetType, images, models, size, offset,
+                        subpixelResolution, fusionType, null, false,
+                        ignoreZeroValues);
+        final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                fuser.createBlockData(c, t);
+        final PixelFusion fusion = fuser.createFusion(blockData);
+
+        if (fusion == null) {
+            throw new IllegalArgumentException("Cannot lazily fuse with "
+                    + fusionType);
+        }
+
+        return new LazyFusion<T>(targetType, blockData, models, offset,
+                dimensions, fusion, blockSize, lazyCacheSize);
+    }
+
+    /**
+     * Fuses one channel and timepoint into a {@link CellImg} with cells of
+     * {@link #chunkSize}, which is not limited to 2^31 pixels per plane like
+     * the ImageJ images created by {@link #fuse}.
+     *
+     * @param c
+     *            - the channel, starting at 1
+     * @param t
+     *            - the timepoint, starting at 1
+     */
+    public static <T extends RealType<T> & NativeType<T>> Img<T> fuseToImg(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final boolean noOverlap,
+            final boolean ignoreZeroValues, final int c, final int t) {
+        final int[] cellSize = new int[dimensionality];
+        for (int d = 0; d < dimensionality; ++d) {
+            cellSize[d] = chunkSize[Math.min(d, chunkSize.length - 1)];
+        }
+
+        return fuseToImg(targetType, images, models, dimensionality,
+                subpixelResolution, fusionType, noOverlap, ignoreZeroValues, c,
+                t, new CellImgFactory<T>(cellSize));
+    }
+
+    /**
+     * Fuses one channel and timepoint into an image created by the given
+     * factory, e.g. a {@link CellImgFactory} for images that are too large
+     * for ImageJ or a factory for disk backed images.
+     *
+     * @param c
+     *            - the channel, starting at 1
+     * @param t
+     *            - the timepoint, starting at 1
+     */
+    public static <T extends RealType<T> & NativeType<T>> Img<T> fuseToImg(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution,
+            final String fusionType, final boolean noOverlap,
+            final boolean ignoreZeroValues, final int c, final int t,
+            final ImgFactory<T> factory) {
+        final double[] offset = new double[dimensionality];
+        final int[] size = new int[dimensionality];
+
+        estimateBounds(offset, size, images, models, dimensionality);
+
+        if (subpixelResolution) {
+            for (int d = 0; d < size.length; ++d) {
+                ++size[d];
+            }
+        }
+
+        final Img<T> out = factory.create(size, targetType);
+
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), models, offset);
+
+        try {
+            new VolumeFuser<T>(targetType, images, models, size, offset,
+                    subpixelResolution, fusionType, null, noOverlap,
+                    ignoreZeroValues).fuseInto(out, c, t, context, false);
+        } finally {
+            context.shutdown();
+        }
+
+        IJ.showProgress(1.01);
+
+        return out;
+    }
+
+    /**
+     * @return if a plane of an image of the given size can be stored in one
+     *         ImageJ array.
+     */
+    private static boolean fitsImagePlus(final int[] size) {
+        return (long) size[0] * size[1] <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return how many volumes of the given size can be fused at the same
+     *         time within {@link #volumeMemoryFraction} of the heap that is
+     *         still available, i.e. not yet used by the inputs.
+     */
+    private static int numConcurrentVolumes(final long bytesPerVolume,
+            final int numVolumes) {
+        final long budget =
+                (long) (Memory.availableHeap() * volumeMemoryFraction);
+        final long fit = budget / Math.max(1, bytesPerVolume);
+
+        return (int) Math.max(1, Math.min(
+                Math.min(fit, Runtime.getRuntime().availableProcessors()),
+                numVolumes));
+    }
+
+    /**
+     * Fuses all channels and timepoints with up to {@code concurrentVolumes}
+     * volumes in flight. The volumes are added to the stack in the same XYZCT
+     * order as the sequential fusion.
+     */
+    private static <T extends RealType<T> & NativeType<T>> void fuseConcurrently(
+            final VolumeFuser<T> fuser, final FusionContext<T> context,
+            final ImageStack stack, final int numTimePoints,
+            final int numChannels, final int concurrentVolumes) {
+        final int numVolumes = numTimePoints * numChannels;
+        final ArrayDeque<ForkJoinTask<Img<T>>> queue =
+                new ArrayDeque<ForkJoinTask<Img<T>>>();
+
+        try {
+            int added = 0;
+            for (int v = 0; v < numVolumes || !queue.isEmpty(); ++v) {
+                if (v < numVolumes) {
+                    final int t = v / numChannels + 1;
+                    final int c = v % numChannels + 1;
+                    queue.add(context.pool.submit(new VolumeTask<T>(fuser,
+                            context, c, t)));
+                }
+
+                // add the oldest volume once the queue is full or all volumes
+                // have been submitted
+                if (queue.size() == concurrentVolumes || v >= numVolumes - 1) {
+                    addToStack(stack, queue.poll().join());
+                    ++added;
+
+                    IJ.showStatus("Fused " + added + " of " + numVolumes
+                            + " channels/time points (" + concurrentVolumes
+                            + " concurrently)...");
+                }
+            }
+        } finally {
+            for (final ForkJoinTask<Img<T>> task : queue) {
+                task.cancel(false);
+            }
+            for (final ForkJoinTask<Img<T>> task : queue) {
+                task.quietlyJoin();
+            }
+        }
+    }
+
+    /**
+     * Adds all slices of a fused volume to the stack, if there is one.
+     */
+    private static void addToStack(final ImageStack stack, final Img<?> out) {
+        if (stack == null) {
+            return;
+        }
+
+        try {
+            final ImagePlus outImp = ((ImagePlusImg<?, ?>) out).getImagePlus();
+            for (int z = 1; z <= out.dimension(2); ++z) {
+                stack.addSlice("", outImp.getStack().getProcessor(z));
+            }
+        } catch (final ImgLibException e) {
+            Log.error("Output image has no ImageJ type: " + e);
+        }
+    }
+
+    /**
+     * Fork/join task that fuses one channel of one timepoint. Each volume
+     * gets its own processors, the region decomposition is shared.
+     */
+    private static class VolumeTask<T extends RealType<T> & NativeType<T>>
+            extends RecursiveTask<Img<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final VolumeFuser<T> fuser;
+        private final FusionContext<T> context;
+        private final int c, t;
+
+        public VolumeTask(final VolumeFuser<T> fuser,
+                final FusionContext<T> context, final int c, final int t) {
+            this.fuser = fuser;
+            this.context = context;
+            this.c = c;
+            this.t = t;
+        }
+
+        @Override
+        protected Img<T> compute() {
+            return fuser.fuse(c, t, new FusionContext<T>(context), false);
+        }
+    }
+
+    /**
+     * Fuses single channels of single timepoints. Holds everything that is
+     * the same for all of them.
+     */
+    private static class VolumeFuser<T extends RealType<T> & NativeType<T>> {
+        private final T targetType;
+        private final ArrayList<ImagePlus> images;
+        private final ArrayList<InvertibleBoundable> models;
+        private final int[] size;
+        private final double[] offset;
+        private final boolean subpixelResolution;
+        private final String fusionType;
+        private final String outputDirectory;
+        private final boolean noOverlap;
+        private final boolean ignoreZeroValues;
+        private final boolean chunked;
+        private final int slab;
+
+        // for output
+        private final ImgFactory<T> f = new ImagePlusImgFactory<T>();
+
+        // for linear interpolation we want to mirror, otherwise we get black
+        // areas at the first and last pixel of each image
+        private final InterpolatorFactory<FloatType, RandomAccessible<FloatType>> interpolatorFactory =
+                new NLinearInterpolatorFactory<FloatType>();
+        private final InterpolatorFactory<FloatType, RandomAccessible<FloatType>> interpolatorFactoryFloat =
+                new NearestNeighborInterpolatorFactory<FloatType>();
+        private final InterpolatorFactory<UnsignedShortType, RandomAccessible<UnsignedShortType>> interpolatorFactoryShort =
+                new NearestNeighborInterpolatorFactory<UnsignedShortType>();
+        private final InterpolatorFactory<UnsignedByteType, RandomAccessible<UnsignedByteType>> interpolatorFactoryByte =
+                new NearestNeighborInterpolatorFactory<UnsignedByteType>();
+
+        public VolumeFuser(final T targetType,
+                final ArrayList<ImagePlus> images,
+                final ArrayList<InvertibleBoundable> models, final int[] size,
+                final double[] offset, final boolean subpixelResolution,
+                final String fusionType, final String outputDirectory,
+                final boolean noOverlap, final boolean ignoreZeroValues) {
+            this(targetType, images, models, size, offset,
+                    subpixelResolution, fusionType, outputDirectory,
+                    noOverlap, ignoreZeroValues, chunkedOutput,
+                    slabThickness);
+        }
+
+        /**
+         * @param chunked
+         *            - write chunks instead of slices to the output directory
+         * @param slab
+         *            - write 3d slices slab by slab with this thickness, 0
+         *            loads the complete inputs
+         */
+        public VolumeFuser(final T targetType,
+                final ArrayList<ImagePlus> images,
+                final ArrayList<InvertibleBoundable> models, final int[] size,
+                final double[] offset, final boolean subpixelResolution,
+                final String fusionType, final String outputDirectory,
+                final boolean noOverlap, final boolean ignoreZeroValues,
+                final boolean chunked, final int slab) {
+            this.targetType = targetType;
+            this.images = images;
+            this.models = models;
+            this.size = size;
+            this.offset = offset;
+            this.subpixelResolution = subpixelResolution;
+            this.fusionType = fusionType;
+            this.outputDirectory = outputDirectory;
+            this.noOverlap = noOverlap;
+            this.ignoreZeroValues = ignoreZeroValues;
+            this.chunked = chunked;
+            this.slab = slab;
+        }
+
+        /**
+         * @return the approximate number of bytes needed to fuse one volume:
+         *         the output and, for subpixel resolution, the float copies of
+         *         color input images. All other input images are wrapped, not
+         *         copied.
+         */
+        public long estimateBytes() {
+            long outPixels = 1;
+            for (int d = 0; d < size.length; ++d) {
+                outPixels *= size[d];
+            }
+
+            long bytes =
+                    outPixels * ((targetType.getBitsPerPixel() + 7) / 8);
+
+            if (subpixelResolution) {
+                for (final ImagePlus imp : images) {
+                    if (!ImageInterpolation.copiesToFloat(imp)) {
+                        continue;
+                    }
+                    bytes +=
+                            4L * imp.getWidth() * imp.getHeight()
+                                    * imp.getNSlices();
+                }
+            }
+
+            return bytes;
+        }
+
+        /**
+         * Fuses channel c of timepoint t. Returns the fused volume, or the
+         * last slice buffer if the output is written to disk.
+         */
+        public Img<T> fuse(final int c, final int t,
+                final FusionContext<T> context, final boolean displayImages) {
+            // create the 2d/3d target image for the current channel and
+            // timepoint
+            final Img<T> out;
+
+            // we just create one slice if we write to disk, and none if we
+            // write chunks
+            if (outputDirectory == null) {
+                out = f.create(size, targetType);
+            } else if (chunked) {
+                out = null;
+            } else {
+                out = f.create(new int[] { size[0], size[1] }, targetType);
+            }
+
+            if (outputDirectory != null && !chunked && slab > 0
+                    && size.length == 3) {
+                writeSlabs(out, c, t, context);
+            } else if (outputDirectory != null) {
+                final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                        createBlockData(c, t);
+                write(out, c, t, blockData, createFusion(blockData), context);
+            } else {
+                fuseInto(out, c, t, context, displayImages);
+            }
+
+            return out;
+        }
+
+        /**
+         * Fuses channel c of timepoint t into an image of the size of the
+         * output, which can be any kind of {@link Img}.
+         */
+        public void fuseInto(final Img<T> out, final int c, final int t,
+                final FusionContext<T> context, final boolean displayImages) {
+            final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                    createBlockData(c, t);
+            final PixelFusion fusion = createFusion(blockData);
+
+            if (noOverlap && !subpixelResolution) {
+                fuseBlockNoOverlap(out, blockData, offset, models,
+                        displayImages);
+            } else {
+                fuseBlock(out, blockData, fusion, displayImages, context);
+            }
+        }
+
+        /**
+         * Extracts the complete blockdata of channel c of timepoint t.
+         */
+        public ArrayList<ImageInterpolation<? extends RealType<?>>> createBlockData(
+                final int c, final int t) {
+            final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                    new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+
+            for (final ImagePlus imp : images) {
+                blockData.add(createInterpolation(imp,
+                        Hyperstack_rearranger.getImageChunk(imp, c, t), null));
+            }
+
+            return blockData;
+        }
+
+        /**
+         * Extracts the slices of channel c of timepoint t that are needed to
+         * fuse the output slices first ... last. The interpolations cover the
+         * complete images, but only the needed slices (plus one for the
+         * interpolation) are loaded. The slices are found by mapping the
+         * corners of the slab into each image, so any model works.
+         */
+        private ArrayList<ImageInterpolation<? extends RealType<?>>> createSlabData(
+                final int c, final int t, final int first, final int last) {
+            final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                    new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+
+            for (int i = 0; i < images.size(); ++i) {
+                final ImagePlus imp = images.get(i);
+                final int lastSlice = imp.getNSlices() - 1;
+                double zMinImg = Double.MAX_VALUE;
+                double zMaxImg = -Double.MAX_VALUE;
+
+                try {
+                    for (int corner = 0; corner < 8; ++corner) {
+                        final double[] p = new double[] {
+                                (corner & 1) == 0 ? 0 : size[0],
+                                (corner & 2) == 0 ? 0 : size[1],
+                                (corner & 4) == 0 ? first : last };
+                        for (int d = 0; d < 3; ++d) {
+                            p[d] += offset[d];
+                        }
+
+                        models.get(i).applyInverseInPlace(p);
+                        zMinImg = Math.min(zMinImg, p[2]);
+                        zMaxImg = Math.max(zMaxImg, p[2]);
+                    }
+                } catch (final NoninvertibleModelException e) {
+                    // the fusion will fail for this model anyway, load all
+                    zMinImg = 0;
+                    zMaxImg = lastSlice;
+                }
+
+                // clamped so that at least one slice is loaded
+                final int zMin =
+                        Math.max(0, Math.min(lastSlice,
+                                (int) Math.floor(zMinImg) - 1));
+                final int zMax =
+                        Math.max(0, Math.min(lastSlice,
+                                (int) Math.ceil(zMaxImg) + 1));
+
+                final ImageStack stack =
+                        new ImageStack(imp.getWidth(), imp.getHeight());
+                for (int s = zMin; s <= zMax; ++s) {
+                    stack.addSlice("", imp.getStack().getProcessor(
+                            imp.getStackIndex(c, s + 1, t)));
+                }
+
+                blockData.add(createInterpolation(imp, new ImagePlus("",
+                        stack), new long[] { 0, 0, zMin }));
+            }
+
+            return blockData;
+        }
+
+        /**
+         * @param imp
+         *            - the input image
+         * @param chunk
+         *            - the loaded slices of one channel and timepoint
+         * @param min
+         *            - the position of the chunk in the image, null if it is
+         *            the complete image
+         */
+        private ImageInterpolation<? extends RealType<?>> createInterpolation(
+                final ImagePlus imp, final ImagePlus chunk, final long[] min) {
+            final long[] dimensions =
+                    min == null ? null : new long[] { imp.getWidth(),
+                            imp.getHeight(), imp.getNSlices() };
+
+            if (subpixelResolution) {
+                return interpolation(ImageInterpolation.wrapFloat(chunk),
+                        interpolatorFactory, true, min, dimensions);
+            } else if (imp.getType() == ImagePlus.GRAY32) {
+                // can be a mixture of different RealTypes
+                return interpolation(ImageJFunctions.wrapFloat(chunk),
+                        interpolatorFactoryFloat, false, min, dimensions);
+            } else if (imp.getType() == ImagePlus.GRAY16) {
+                return interpolation(ImageJFunctions.wrapShort(chunk),
+                        interpolatorFactoryShort, false, min, dimensions);
+            } else {
+                return interpolation(ImageJFunctions.wrapByte(chunk),
+                        interpolatorFactoryByte, false, min, dimensions);
+            }
+        }
+
+        private <S extends RealType<S>> ImageInterpolation<S> interpolation(
+                final Img<S> img,
+                final InterpolatorFactory<S, RandomAccessible<S>> factory,
+                final boolean mirror, final long[] min,
+                final long[] dimensions) {
+            if (min == null) {
+                return new ImageInterpolation<S>(img, factory, mirror);
+            }
+            return new ImageInterpolation<S>(img, min, dimensions, factory,
+                    mirror);
+        }
+
+        /**
+         * @return the pixel fusion for the fusion type, null if the fusion
+         *         type does not fuse pixels.
+         */
+        public PixelFusion createFusion(
+                final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData) {
+            return createPixelFusion(fusionType, ignoreZeroValues,
+                    images.size(), blockData);
+        }
+
+        /**
+         * Writes channel c of timepoint t to the output directory, either as
+         * chunked block store or as one image per slice.
+         */
+        private void write(
+                final Img<T> out,
+                final int c,
+                final int t,
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> blockData,
+                final PixelFusion fusion, final FusionContext<T> context) {
+            if (chunked) {
+                writeChunked(targetType, size, c, t, blockData, fusion,
+                        outputDirectory, context);
+                return;
+            }
+
+            final int numSlices;
+
+            if (offset.length == 2) {
+                numSlices = 1;
+            } else {
+                numSlices = size[2];
+            }
+
+            writeBlock(out, 0, numSlices, numSlices, t,
+                    images.get(0).getNFrames(), c,
+                    images.get(0).getNChannels(), blockData, fusion,
+                    outputDirectory, context);
+        }
+
+        /**
+         * Writes channel c of timepoint t slab by slab, loading only the
+         * slices of the inputs that are needed for the current slab. The
+         * inputs of a slab are released before the next one is loaded.
+         */
+        private void writeSlabs(final Img<T> out, final int c, final int t,
+                final FusionContext<T> context) {
+            final int numSlices = size[2];
+
+            for (int first = 0; first < numSlices; first += slab) {
+                final int end = Math.min(numSlices, first + slab);
+                final ArrayList<ImageInterpolation<? extends RealType<?>>> blockData =
+                        createSlabData(c, t, first, end - 1);
+
+                writeBlock(out, first, end, numSlices, t,
+                        images.get(0).getNFrames(), c,
+                        images.get(0).getNChannels(), blockData,
+                        createFusion(blockData), outputDirectory, context);
+            }
+        }
+    }
+
+    /**
+     * Fuse one slice/volume (one channel)
+     *
+     * @param output
+     *            - same the type of the ImagePlus input
+     * @param input
+     *            - FloatType, because of Interpolation that needs to be done
+     * @param transform
+     *            - the transformation
+     */
+    protected static <T extends RealType<T>> void fuseBlock(
+            final Img<T> output,
+            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+            final double[] offset,
+            final ArrayList<InvertibleBoundable> transform,
+            final PixelFusion fusion, final boolean displayFusion) {
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), transform, offset);
+
+        try {
+            fuseBlock(output, input, fusion, displayFusion, context);
+        } finally {
+            context.shutdown();
+        }
+    }
+
+    /**
+     * Fuse one slice/volume (one channel). All {@link ClassifiedRegion}s are
+     * split into tasks of roughly equal pixel count and processed by the pool
+     * of the context, which also provides the region decomposition and the
+     * per-thread {@link TileProcessor}s, so all of them are reused for all
+     * channels and timepoints.
+     *
+     * @param output
+     *            - same the type of the ImagePlus input
+     * @param input
+     *            - FloatType, because of Interpolation that needs to be done
+     * @param context
+     *            - the state shared by all blocks fused with the same models
+     */
+    private static <T extends RealType<T>> void fuseBlock(
+            final Img<T> output,
+            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+            final PixelFusion fusion, final boolean displayFusion,
+            final FusionContext<T> context) {
+        final ForkJoinPool pool = context.pool;
+        final List<ClassifiedRegion> tiles = context.getTiles(input);
 
-        if (displayFusion) {
+        IJ.showProgress(0);
+
+        ImagePlus fusionImp = null;
+
+        // only ImageJ images can be displayed
+        if (displayFusion && output instanceof ImagePlusImg) {
             try {
-                fusionImp[0] = ((ImagePlusImg<?, ?>) output).getImagePlus();
-                fusionImp[0].setTitle("fusing...");
-                fusionImp[0].show();
+                fusionImp = ((ImagePlusImg<?, ?>) output).getImagePlus();
+                fusionImp.setTitle("fusing...");
+                fusionImp.show();
             } catch (final ImgLibException e) {
                 Log.error("Output image has no ImageJ type: " + e);
             }
         }
 
-        final Thread[] threads = SimpleMultiThreading.newThreads();
-        final TileProcessor<T>[] processors = new TileProcessor[threads.length];
-        final List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators =
-                new ArrayList<ArrayList<RealRandomAccess<? extends RealType<?>>>>();
-        final long positionsPerThread = size / threads.length;
-
-        // These fields need to be used within each thread, but modified from
-        // the outer loop. Thus the use of arrays/vectors.
-        final int[] count = new int[1]; // positions processed
-        final ClassifiedRegion[] currentTile = new ClassifiedRegion[1]; // current
-        // region
-        // being
-        // processed
-        final List<Chunk> threadChunks = new ArrayList<Chunk>(); // work
-        // divisions for
-        // current
-        // region
-        final int[] loopDim = new int[1]; // Dimension to split up work on
-
-        // Initialize the TileProcessors. These will be reused by each thread.
-        for (int i = 0; i < threads.length; ++i) {
-            processors[i] =
-                    new TileProcessor<T>(i, interpolators, input, threadChunks,
-                            numImages, output, fusion, currentTile, transform,
-                            fusionImp, count, positionsPerThread, offset,
-                            loopDim);
-        }
-
-        // Process each tile
-        for (int tileIndex = 0; tileIndex < tiles.size(); tileIndex++) {
-            currentTile[0] = tiles.get(tileIndex);
-
-            // Initialize each thread for this tile
-            for (int threadID = 0; threadID < threads.length; ++threadID) {
-                threads[threadID] = new Thread(processors[threadID]);
-            }
-
-            // Decide which dimension to use to split up work for each thread.
-            // We want to pick the largest dimension as this gives us the best
-            // chance
-            // of evenly dividing work when using multiple threads
-            int dimensionSize = -1;
-            for (int d = 0; d < currentTile[0].size(); d++) {
-                final int tmpSize =
-                        currentTile[0].get(d).max()
-                                - currentTile[0].get(d).min() + 1;
-                if (tmpSize > dimensionSize) {
-                    dimensionSize = tmpSize;
-                    loopDim[0] = d;
-                }
+        // The size of the tasks adapts to the amount of work, we want several
+        // tasks per worker so that nobody idles while the last ones finish
+        long size = 0;
+        for (final ClassifiedRegion tile : tiles) {
+            size += numPixels(tile, output);
+        }
+
+        final long pixelsPerTask =
+                Math.max(minPixelsPerTask,
+                        size / (8L * pool.getParallelism()));
+
+        final TileProcessorFactory<T> factory =
+                context.getFactory(input, fusion);
+        final FusionProgress progress = new FusionProgress(size, fusionImp);
+
+        try {
+            invoke(pool, new RegionListTask<T>(tiles, 0, tiles.size(), output,
+                    -1, factory, pixelsPerTask, progress));
+        } catch (final RuntimeException e) {
+            if (!isNoninvertible(e)) {
+                throw e;
             }
+            Log.error("Cannot invert model, quitting.");
+        } finally {
+            context.release();
+        }
 
-            // Specify the loop ranges for each thread
-            threadChunks.clear();
-            threadChunks.addAll(SimpleMultiThreading.divideIntoChunks(
-                    dimensionSize, threads.length));
+        if (fusionImp != null) {
+            fusionImp.hide();
+        }
+    }
 
-            // Start the work for this tile
-            SimpleMultiThreading.startAndJoin(threads);
+    /**
+     * @param numImages
+     *            - the number of images fused, i.e. of values per pixel
+     * @param blockData
+     *            - the images for the linear blending
+     * @return the pixel fusion for the fusion type, null if the fusion type
+     *         does not fuse pixels.
+     */
+    static PixelFusion createPixelFusion(final String fusionType,
+            final boolean ignoreZeroValues, final int numImages,
+            final ArrayList<? extends ImageInterpolation<?>> blockData) {
+        if (FusionType.LINEAR_BLENDING.equals(fusionType)) {
+            // init blending with the images
+            if (ignoreZeroValues) {
+                return new BlendingPixelFusionIgnoreZero(blockData);
+            } else {
+                return new BlendingPixelFusion(blockData);
+            }
+        } else if (FusionType.AVERAGE.equals(fusionType)) {
+            if (ignoreZeroValues) {
+                return new AveragePixelFusionIgnoreZero();
+            } else {
+                return new AveragePixelFusion();
+            }
+        } else if (FusionType.MEDIAN.equals(fusionType)) {
+            if (ignoreZeroValues) {
+                return new MedianPixelFusionIgnoreZero(numImages);
+            } else {
+                return new MedianPixelFusion(numImages);
+            }
+        } else if (FusionType.MAX_INTENSITY.equals(fusionType)) {
+            if (ignoreZeroValues) {
+                return new MaxPixelFusionIgnoreZero();
+            } else {
+                return new MaxPixelFusion();
+            }
+        } else if (FusionType.MIN_INTENSITY.equals(fusionType)) {
+            if (ignoreZeroValues) {
+                return new MinPixelFusionIgnoreZero();
+            } else {
+                return new MinPixelFusion();
+            }
+        } else if (FusionType.INTENSITY_RANDOM_TILE.equals(fusionType)) {
+            return new RandomTileFusion();
+        } else if (FusionType.NO_FUSE.equals(fusionType)
+                || FusionType.OVERLAY.equals(fusionType)) {
+            return null;
+        } else {
+            throw new IllegalStateException(
+                    "This case was not considered !!!");
         }
+    }
 
-        if (fusionImp[0] != null) {
-            fusionImp[0].hide();
+    /**
+     * Creates the pool used to run the fusion tasks, with one worker per
+     * available processor.
+     */
+    protected static ForkJoinPool createFusionPool() {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the task in the pool. If the current thread already is a worker of
+     * the pool (e.g. while fusing several volumes concurrently), the task is
+     * run directly so the worker takes part in it instead of blocking.
+     */
+    private static void invoke(final ForkJoinPool pool,
+            final ForkJoinTask<?> task) {
+        if (ForkJoinTask.getPool() == pool) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * @return true if the failure of a fusion task was caused by a model that
+     *         could not be inverted.
+     */
+    private static boolean isNoninvertible(final Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoninvertibleModelException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of pixels of the region inside the target.
+     */
+    private static long numPixels(final ClassifiedRegion region,
+            final RandomAccessibleInterval<?> target) {
+        long size = 1;
+        for (int d = 0; d < region.size(); d++) {
+            size *=
+                    Math.max(0, Math.min(region.get(d).max(), target.max(d))
+                            - Math.max(region.get(d).min(), target.min(d))
+                            + 1);
         }
+        return size;
     }
 
     /**
@@ -451,7 +1502,8 @@ public class Fusion {
             final ArrayList<InvertibleBoundable> transform,
             final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
             final double[] offset) {
-        final Stack<ClassifiedRegion> rawTiles = new Stack<ClassifiedRegion>();
+        final List<ClassifiedRegion> rawTiles =
+                new ArrayList<ClassifiedRegion>();
 
         for (int i = 0; i < numImages; ++i) {
             final double[] min = new double[numDimensions];
@@ -465,330 +1517,672 @@ public class Fusion {
                 final Interval ival =
                         new Interval((int) Math.ceil(min[d]),
                                 (int) Math.floor(min[d]
-                                        + input.get(i).getImg().dimension(d)
+                                        + input.get(i).dimension(d)
                                         - 1));
                 // Build our list of positions
                 shape.set(ival, d);
             }
-            rawTiles.push(shape);
-        }
-
-        // Set of placed tiles. Goal is to move all of the known positions
-        // to this set, creating new regions as needed such that there is no
-        // overlap between regions. Then use this set to drive iteration and
-        // fusion.
-        final Set<ClassifiedRegion> placedTiles =
-                new HashSet<ClassifiedRegion>();
-
-        // Process each position. We need to look through all placed regions and
-        // if we find an intersection, create a new set of regions, add them
-        // to the appropriate sets, and continue
-        while (!rawTiles.isEmpty()) {
-            // Get the next tile to process
-            final ClassifiedRegion queryTile = rawTiles.pop();
-            ClassifiedRegion toRemove = null;
-            // TODO instead of iterating we really should use a look up tree
-            // structure, as this
-            // is still quite slow with larger datasets.
-            // Iterate over all placed shapes.
-            for (final ClassifiedRegion placedTile : placedTiles) {
-                if (queryTile.intersects(placedTile)) {
-                    // can't remove while iterating
-                    toRemove = placedTile;
-                    // The first time we find an overlapping between tiles, we
-                    // split the
-                    // two tiles into tile components and place them in the
-                    // appropriate
-                    // lists. Then quit this loop (as our query shape is no
-                    // longer valid)
-                    // and continue the process
-                    splitOverlappingRegions(placedTiles, rawTiles, queryTile,
-                            placedTile);
-                    break;
+            rawTiles.add(shape);
+        }
+
+        return RegionDecomposition.decompose(rawTiles);
+    }
+
+    /**
+     * Supplies the {@link TileProcessor} of the current thread.
+     */
+    private interface TileProcessorFactory<T extends RealType<T>> {
+        TileProcessor<T> getProcessor();
+    }
+
+    /**
+     * State shared by the fusion of all blocks (channels, timepoints) that use
+     * the same models and image sizes: the pool, the region decomposition and
+     * the {@link TileProcessor} of each worker thread. The decomposition is
+     * computed from the first input and reused for all following ones. Blocks
+     * that are fused at the same time need their own processors, they use
+     * child contexts that share the pool and the decomposition.
+     */
+    private static class FusionContext<T extends RealType<T>> {
+        private final FusionContext<T> parent;
+        private final ForkJoinPool pool;
+        private final ArrayList<InvertibleBoundable> transform;
+        private final double[] offset;
+        private final ConcurrentHashMap<Thread, TileProcessor<T>> processors =
+                new ConcurrentHashMap<Thread, TileProcessor<T>>();
+        private List<ClassifiedRegion> tiles = null;
+
+        public FusionContext(final ForkJoinPool pool,
+                final ArrayList<InvertibleBoundable> transform,
+                final double[] offset) {
+            this.parent = null;
+            this.pool = pool;
+            this.transform = transform;
+            this.offset = offset;
+        }
+
+        /**
+         * Creates a child context with its own processors.
+         */
+        public FusionContext(final FusionContext<T> parent) {
+            this.parent = parent;
+            this.pool = parent.pool;
+            this.transform = parent.transform;
+            this.offset = parent.offset;
+        }
+
+        /**
+         * @return the non-overlapping regions of the input images, only
+         *         computed on the first call.
+         */
+        public List<ClassifiedRegion> getTiles(
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input) {
+            if (parent != null) {
+                return parent.getTiles(input);
+            }
+
+            synchronized (this) {
+                if (tiles == null) {
+                    tiles =
+                            buildTileList(input.size(), offset.length,
+                                    transform, input, offset);
                 }
+                return tiles;
             }
-            // If we found an intersection, the query tile and placed tile were
-            // broken
-            // down and should be discarded
-            if (toRemove != null) {
-                placedTiles.remove(toRemove);
+        }
+
+        /**
+         * @return a factory that supplies the processor of the current
+         *         thread, bound to the given input and fusion. Every worker
+         *         thread lazily creates its own processor and keeps it for
+         *         all blocks.
+         */
+        public TileProcessorFactory<T> getFactory(
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+                final PixelFusion fusion) {
+            return new TileProcessorFactory<T>() {
+                @Override
+                public TileProcessor<T> getProcessor() {
+                    final Thread thread = Thread.currentThread();
+                    TileProcessor<T> processor = processors.get(thread);
+                    if (processor == null) {
+                        processor =
+                                new TileProcessor<T>(input.size(), transform,
+                                        offset);
+                        processors.put(thread, processor);
+                    }
+                    processor.bind(input, fusion);
+                    return processor;
+                }
+            };
+        }
+
+        /**
+         * Releases the images and fusion of the last block, so they can be
+         * garbage collected while the next block is loaded. Must only be
+         * called while no tasks are running.
+         */
+        public void release() {
+            for (final TileProcessor<T> processor : processors.values()) {
+                processor.release();
+            }
+        }
+
+        public void shutdown() {
+            processors.clear();
+            if (parent == null && pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Fork/join task that fuses a box with a {@link BlockFuser} in parallel,
+     * the box is halved along its largest dimension until it is not larger
+     * than a block.
+     */
+    private static class BoxTask<T extends RealType<T>> extends
+            RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockFuser<T> fuser;
+        private final RandomAccessibleInterval<T> target;
+        private final int[] blockSize;
+
+        public BoxTask(final BlockFuser<T> fuser,
+                final RandomAccessibleInterval<T> target,
+                final int[] blockSize) {
+            this.fuser = fuser;
+            this.target = target;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        protected void compute() {
+            int splitDim = -1;
+            for (int d = 0; d < target.numDimensions(); ++d) {
+                if (target.dimension(d) > blockSize[d]
+                        && (splitDim < 0 || target.dimension(d) > target
+                                .dimension(splitDim))) {
+                    splitDim = d;
+                }
+            }
+
+            if (splitDim < 0) {
+                fuser.fuse(target);
+                return;
+            }
+
+            final long[] min = new long[target.numDimensions()];
+            final long[] max = new long[target.numDimensions()];
+            target.min(min);
+            target.max(max);
+
+            final long mid = (min[splitDim] + max[splitDim]) / 2;
+            final long[] leftMax = max.clone();
+            final long[] rightMin = min.clone();
+            leftMax[splitDim] = mid;
+            rightMin[splitDim] = mid + 1;
+
+            invokeAll(new BoxTask<T>(fuser, Views.interval(target, min,
+                    leftMax), blockSize), new BoxTask<T>(fuser, Views.interval(
+                    target, rightMin, max), blockSize));
+        }
+    }
+
+    /**
+     * Fork/join task that distributes a range of the region list over the
+     * pool by recursively halving it. If the target has fewer dimensions than
+     * the regions, the last dimension of each region is pinned to the given
+     * slice.
+     */
+    private static class RegionListTask<T extends RealType<T>> extends
+            RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClassifiedRegion> tiles;
+        private final int from, to;
+        private final RandomAccessibleInterval<T> target;
+        private final int slice;
+        private final TileProcessorFactory<T> factory;
+        private final long pixelsPerTask;
+        private final FusionProgress progress;
+
+        public RegionListTask(final List<ClassifiedRegion> tiles,
+                final int from, final int to,
+                final RandomAccessibleInterval<T> target,
+                final int slice, final TileProcessorFactory<T> factory,
+                final long pixelsPerTask, final FusionProgress progress) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.slice = slice;
+            this.factory = factory;
+            this.pixelsPerTask = pixelsPerTask;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new RegionListTask<T>(tiles, from, mid, target,
+                        slice, factory, pixelsPerTask, progress),
+                        new RegionListTask<T>(tiles, mid, to, target, slice,
+                                factory, pixelsPerTask, progress));
+            } else if (to - from == 1) {
+                final ClassifiedRegion tile = tiles.get(from);
+                final int[] min = new int[tile.size()];
+                final int[] max = new int[tile.size()];
+
+                // regions of images that only partly cover the target (e.g.
+                // a crop) are clipped to it
+                for (int d = 0; d < target.numDimensions(); d++) {
+                    min[d] = (int) Math.max(tile.get(d).min(), target.min(d));
+                    max[d] = (int) Math.min(tile.get(d).max(), target.max(d));
+                    if (max[d] < min[d]) {
+                        return;
+                    }
+                }
+
+                for (int d = target.numDimensions(); d < tile.size(); d++) {
+                    min[d] = max[d] = slice;
+                }
+
+                new RegionTask<T>(tile, min, max, target, factory,
+                        pixelsPerTask, progress).compute();
+            }
+        }
+    }
+
+    /**
+     * Fork/join task that fuses a box of a single {@link ClassifiedRegion}.
+     * Boxes with more than {@code pixelsPerTask} pixels are halved along their
+     * largest dimension.
+     */
+    private static class RegionTask<T extends RealType<T>> extends
+            RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ClassifiedRegion tile;
+        private final int[] min, max;
+        private final RandomAccessibleInterval<T> target;
+        private final TileProcessorFactory<T> factory;
+        private final long pixelsPerTask;
+        private final FusionProgress progress;
+
+        public RegionTask(final ClassifiedRegion tile, final int[] min,
+                final int[] max, final RandomAccessibleInterval<T> target,
+                final TileProcessorFactory<T> factory,
+                final long pixelsPerTask, final FusionProgress progress) {
+            this.tile = tile;
+            this.min = min;
+            this.max = max;
+            this.target = target;
+            this.factory = factory;
+            this.pixelsPerTask = pixelsPerTask;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            long size = 1;
+            int splitDim = 0;
+            for (int d = 0; d < min.length; d++) {
+                final int dimSize = max[d] - min[d] + 1;
+                size *= dimSize;
+                if (dimSize > max[splitDim] - min[splitDim] + 1) {
+                    splitDim = d;
+                }
+            }
+
+            if (size > pixelsPerTask && max[splitDim] > min[splitDim]) {
+                final int mid = (min[splitDim] + max[splitDim]) >>> 1;
+                final int[] leftMax = max.clone();
+                final int[] rightMin = min.clone();
+                leftMax[splitDim] = mid;
+                rightMin[splitDim] = mid + 1;
+
+                invokeAll(new RegionTask<T>(tile, min, leftMax, target,
+                        factory, pixelsPerTask, progress), new RegionTask<T>(
+                        tile, rightMin, max, target, factory, pixelsPerTask,
+                        progress));
+                return;
+            }
+
+            try {
+                factory.getProcessor().processTile(tile, min, max, target);
+            } catch (final NoninvertibleModelException e) {
+                throw new RuntimeException(e);
             }
-            // No intersections found, so just place the tile and continue.
-            else {
-                placedTiles.add(queryTile);
+
+            if (progress != null) {
+                progress.add(size);
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the number of fused pixels, updates the progress bar and
+     * redraws the preview from whichever thread finishes a task.
+     */
+    private static class FusionProgress {
+        private final double size;
+        private final ImagePlus fusionImp;
+        private long count = 0;
+        private long lastDraw = 0;
+
+        public FusionProgress(final long size, final ImagePlus fusionImp) {
+            this.size = Math.max(1, size);
+            this.fusionImp = fusionImp;
+        }
+
+        public synchronized void add(final long pixels) {
+            count += pixels;
+            lastDraw = drawFusion(lastDraw, fusionImp);
+            IJ.showProgress(count / size);
+        }
+    }
+
+    /**
+     * Helper class to perform tile processing (iteration through a box of a
+     * region, fusion of input pixels, and population of output pixels). One
+     * instance is created per thread and reused for all its tasks and blocks.
+     * The position arrays and scanline steps only depend on the models and
+     * are created once, the interpolators and the fusion are (re-)created
+     * when the processor is bound to another input or fusion.
+     */
+    private static class TileProcessor<T extends RealType<T>> {
+
+        private final ArrayList<InvertibleBoundable> transform;
+        private final double[] offset;
+        private final ArrayList<ImageInterpolation<? extends RealType<?>>> images;
+        private final ArrayList<RealRandomAccess<? extends RealType<?>>> in;
+        private final double[][] inPos;
+        private final int[] position;
+        private PixelFusion fusion = null;
+        private PixelFusion myFusion = null;
+
+        // if the fusion of a single value is that value, regions of a single
+        // image are then copied without the fusion
+        private boolean direct = false;
+
+        // chooses the image shown in overlapping regions, if not null
+        private RandomTileFusion tileSelection = null;
+
+        // scanline support: how the position in each input image changes
+        // when moving one pixel along x in the output, only the dimensions
+        // that actually change are stored
+        private final boolean scanline;
+        private final int[][] stepDims;
+        private final double[][] steps;
+
+        // the target of the last task and its RandomAccess
+        private RandomAccessibleInterval<T> target = null;
+        private RandomAccess<T> out = null;
+
+        public TileProcessor(final int numImages,
+                final ArrayList<InvertibleBoundable> transform,
+                final double[] offset) {
+            this.transform = transform;
+            this.offset = offset;
+
+            images = new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+            in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
+            for (int i = 0; i < numImages; ++i) {
+                images.add(null);
+                in.add(null);
+            }
+
+            inPos = new double[numImages][offset.length];
+            position = new int[offset.length];
+
+            stepDims = new int[numImages][];
+            steps = new double[numImages][];
+            scanline =
+                    scanlineFusion
+                            && (offset.length == 2 || offset.length == 3)
+                            && computeSteps(transform, stepDims, steps);
+        }
+
+        /**
+         * Binds this processor to the given input and fusion. Interpolators
+         * are only created for images that changed since the last call, the
+         * fusion is only copied if it changed.
+         */
+        public void bind(
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+                final PixelFusion fusion) {
+            for (int i = 0; i < input.size(); ++i) {
+                if (images.get(i) != input.get(i)) {
+                    images.set(i, input.get(i));
+                    in.set(i, input.get(i).createInterpolator());
+                }
             }
-        }
-        return new ArrayList<ClassifiedRegion>(placedTiles);
-    }
 
-    /**
-     * Takes two overlapping regions and deconstructs them into a set of
-     * non-overlapping regions. Each resulting region gains the
-     * classification(s) of its parent(s). Parents are differentiated by "query"
-     * and "placed" - where "placed" is assumed to come from the
-     * {@code placedTiles} set, and thus will not overlap with any other tile in
-     * that set. The "query" tile is what we are currently investigating for
-     * overlap, so any children of the query tile must be added back to the set
-     * of tiles that will be used for further overlap checks.
-     */
-    private static void splitOverlappingRegions(
-            final Set<ClassifiedRegion> placedTiles,
-            final Stack<ClassifiedRegion> rawTiles,
-            final ClassifiedRegion queryTile, final ClassifiedRegion placedTile) {
-        // Tiles are different but overlapping. So we need to identify the start
-        // and end points of
-        // all potential sub tiles, for each dimension.
-        final List<Interval>[] allIntervals = new List[queryTile.size()];
-        for (int i = 0; i < allIntervals.length; i++) {
-            final List<Interval> intervals = new ArrayList<Interval>();
-            final List<Integer> points = new ArrayList<Integer>();
-            points.add(queryTile.get(i).min());
-            points.add(queryTile.get(i).max());
-            points.add(placedTile.get(i).min());
-            points.add(placedTile.get(i).max());
-            // Which tiles the points belong to doesn't matter. We just need to
-            // make intervals of the adjacent points
-            Collections.sort(points);
-
-            if (points.get(0).equals(points.get(1))) {
-                // First two points are equal
-                if (points.get(2).equals(points.get(3))) {
-                    // Last two points are equal. Intervals overlap exactly
-                    intervals.add(new Interval(points.get(0), points.get(2)));
-                } else if (points.get(1).equals(points.get(2))) {
-                    // First three points are equal, but last one is different.
-                    // Single point shares edge
-                    intervals.add(new Interval(points.get(0)));
-                    intervals
-                            .add(new Interval(points.get(0) + 1, points.get(3)));
+            if (fusion != this.fusion) {
+                this.fusion = fusion;
+                myFusion = fusion.copy();
+                direct = isDirect(fusion);
+                if (fusion instanceof RandomTileFusion) {
+                    tileSelection = (RandomTileFusion) fusion;
                 } else {
-                    // Overlap at first point, other two are unique (partial
-                    // overlap with shared edge)
-                    intervals.add(new Interval(points.get(0), points.get(2)));
-                    intervals
-                            .add(new Interval(points.get(2) + 1, points.get(3)));
+                    tileSelection = null;
                 }
-            } else if (points.get(1).equals(points.get(2))) {
-                if (points.get(2).equals(points.get(3))) {
-                    // Last three points are equal, first is different. Single
-                    // point shares edge
-                    intervals.add(new Interval(points.get(3)));
-                    intervals
-                            .add(new Interval(points.get(0), points.get(3) - 1));
-                } else {
-                    // Mid 2 points are equal. Two distinct tiles share an edge.
-                    intervals
-                            .add(new Interval(points.get(0), points.get(1) - 1));
-                    intervals.add(new Interval(points.get(1)));
-                    intervals
-                            .add(new Interval(points.get(1) + 1, points.get(3)));
-                }
-            } else if (points.get(2).equals(points.get(3))) {
-                // Last 2 points are equal, other two are unique (partial
-                // overlap with shared edge)
-                intervals.add(new Interval(points.get(0), points.get(1) - 1));
-                intervals.add(new Interval(points.get(1), points.get(3)));
-            } else {
-                // Overlap, zero shared edges
-                intervals.add(new Interval(points.get(0), points.get(1) - 1));
-                intervals.add(new Interval(points.get(1), points.get(2)));
-                intervals.add(new Interval(points.get(2) + 1, points.get(3)));
             }
-
-            allIntervals[i] = intervals;
         }
 
-        // Now that we know our potential intervals, we need to enumerate a list
-        // of all regions constructable from those intervals
-        final int[] pos = new int[allIntervals.length];
+        /**
+         * @return if the fusion returns the value itself when a single value
+         *         is added, which holds for all fusions of this package. Other
+         *         fusions always go through the fusion.
+         */
+        private static boolean isDirect(final PixelFusion fusion) {
+            return fusion instanceof AveragePixelFusion
+                    || fusion instanceof BlendingPixelFusion
+                    || fusion instanceof MaxPixelFusion
+                    || fusion instanceof MinPixelFusion
+                    || fusion instanceof MedianPixelFusion
+                    || fusion instanceof OverlapFusion;
+        }
 
-        // Build and place all regions
-        buildAllRegions(allIntervals, pos, 0, queryTile, placedTile,
-                placedTiles, rawTiles);
-    }
+        /**
+         * Drops all references to the bound input, fusion and target.
+         */
+        public void release() {
+            for (int i = 0; i < images.size(); ++i) {
+                images.set(i, null);
+                in.set(i, null);
+            }
+            fusion = myFusion = null;
+            tileSelection = null;
+            target = null;
+            out = null;
+        }
 
-    /**
-     * Helper class to perform tile processing (iteration through a region,
-     * fusion of input pixels, and population of output pixels). Array fields
-     * allow one to be created per thread, then have values modified externally.
-     */
-    private static class TileProcessor<T extends RealType<T>> implements
-            Runnable {
+        /**
+         * Computes for each (affine) transformation how a step of one pixel
+         * along x in the output moves the position in the input image.
+         *
+         * @return false if any transformation is not affine, the scanline
+         *         kernel cannot be used then
+         */
+        private static boolean computeSteps(
+                final ArrayList<InvertibleBoundable> transform,
+                final int[][] stepDims, final double[][] steps) {
+            for (int i = 0; i < stepDims.length; ++i) {
+                final InvertibleBoundable model = transform.get(i);
+                if (!(model instanceof AbstractAffineModel2D)
+                        && !(model instanceof AbstractAffineModel3D)) {
+                    return false;
+                }
 
-        private int loopOffset;
-        private int loopSize;
-        private final int[] loopDim;
+                final int n = model instanceof AbstractAffineModel2D ? 2 : 3;
+                final double[] p0 = new double[n];
+                final double[] p1 = new double[n];
+                p1[0] = 1;
 
-        private final List<Chunk> threadChunks;
-        private final int threadNumber; // thread id
-        private final ClassifiedRegion[] currentTile;
-        private final ArrayList<InvertibleBoundable> transform;
-        private final ImagePlus[] fusionImp;
-        private final int[] count;
-        private final double positionsPerThread;
-        private final double[] offset;
-        private final long[] lastDraw = new long[1];
-        private final ArrayList<RealRandomAccess<? extends RealType<?>>> in;
-        private final double[][] inPos;
-        private final PixelFusion myFusion;
-        private final RandomAccess<T> out;
+                try {
+                    model.applyInverseInPlace(p0);
+                    model.applyInverseInPlace(p1);
+                } catch (final NoninvertibleModelException e) {
+                    return false;
+                }
 
-        public TileProcessor(
-                final int threadNumber,
-                final List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
-                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-                final List<Chunk> threadChunks, final int numImages,
-                final Img<T> output, final PixelFusion fusion,
-                final ClassifiedRegion[] currentTile,
-                final ArrayList<InvertibleBoundable> transform,
-                final ImagePlus[] fusionImp, final int[] count,
-                final double positionsPerThread, final double[] offset,
-                final int[] loopDim) {
-            this.threadNumber = threadNumber;
-            this.threadChunks = threadChunks;
-            this.currentTile = currentTile;
-            this.transform = transform;
-            this.fusionImp = fusionImp;
-            this.count = count;
-            this.positionsPerThread = positionsPerThread;
-            this.offset = offset;
-            this.loopDim = loopDim;
+                int numSteps = 0;
+                for (int d = 0; d < n; ++d) {
+                    if (p1[d] != p0[d]) {
+                        ++numSteps;
+                    }
+                }
 
-            in =
-                    getThreadInterpolators(interpolators, threadNumber, input,
-                            numImages);
-            inPos = new double[numImages][output.numDimensions()];
-            myFusion = fusion.copy();
-            out = output.randomAccess();
+                stepDims[i] = new int[numSteps];
+                steps[i] = new double[numSteps];
+                for (int d = 0, j = 0; d < n; ++d) {
+                    if (p1[d] != p0[d]) {
+                        stepDims[i][j] = d;
+                        steps[i][j++] = p1[d] - p0[d];
+                    }
+                }
+            }
+            return true;
         }
 
-        @Override
-        public void run() {
+        /**
+         * Fuses all positions of the given {@link ClassifiedRegion} that lie
+         * within {@code [min, max]} into the target. The target may have
+         * fewer dimensions than the region (e.g. a single slice of a 3d
+         * fusion), the remaining dimensions are then expected to be pinned by
+         * {@code min == max}.
+         */
+        public void processTile(final ClassifiedRegion r, final int[] min,
+                final int[] max, final RandomAccessibleInterval<T> target)
+                throws NoninvertibleModelException {
+            if (target != this.target) {
+                this.target = target;
+                out = target.randomAccess();
+            }
 
-            // get chunk of pixels to process
-            final Chunk myChunk = threadChunks.get(threadNumber);
-            loopOffset = (int) myChunk.getStartPosition();
-            loopSize = (int) myChunk.getLoopSize();
+            int[] images = r.classArray();
 
-            try {
-                // Process each tile index assigned to this thread
-                // For each position in this tile, fuse its pixels across the
-                // appropriate images
-                // NB: recursion is necessary because there are an arbitrary
-                // number of dimensions in the tile
-                processTile(currentTile[0], 0, myFusion, transform, in, out,
-                        inPos, threadNumber, count, lastDraw, fusionImp[0]);
-            } catch (final NoninvertibleModelException e) {
-                Log.error("Cannot invert model, qutting.");
-                return;
+            // only one image is shown in an overlap, it is copied like a
+            // region of a single image
+            if (tileSelection != null && images.length > 1) {
+                images = new int[] { images[tileSelection.selectTile(r)] };
             }
 
+            if (scanline) {
+                processRows(images, min, max);
+            } else {
+                processTile(r, images, min, max, 0);
+            }
         }
 
         /**
-         * Helper method to lazily initialize the input image interpolators,
-         * creating one list per thread.
+         * Scanline kernel for 2d and 3d. The input positions are only
+         * transformed once at the start of each row and then moved along
+         * the row incrementally.
          */
-        private ArrayList<RealRandomAccess<? extends RealType<?>>> getThreadInterpolators(
-                final List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
-                final int threadNumber,
-                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-                final int numImages) {
-            ArrayList<RealRandomAccess<? extends RealType<?>>> in = null;
-            if (threadNumber >= interpolators.size()) {
-                in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-                for (int i = 0; i < numImages; ++i) {
-                    in.add(input.get(i).createInterpolator());
+        private void processRows(final int[] images, final int[] min,
+                final int[] max) throws NoninvertibleModelException {
+            final int outDims = out.numDimensions();
+
+            if (min.length == 2) {
+                for (int y = min[1]; y <= max[1]; ++y) {
+                    position[1] = y;
+                    out.setPosition(y, 1);
+                    processRow(images, min[0], max[0]);
                 }
-                interpolators.add(in);
             } else {
-                in = interpolators.get(threadNumber);
+                for (int z = min[2]; z <= max[2]; ++z) {
+                    position[2] = z;
+                    if (outDims > 2) {
+                        out.setPosition(z, 2);
+                    }
+                    for (int y = min[1]; y <= max[1]; ++y) {
+                        position[1] = y;
+                        out.setPosition(y, 1);
+                        processRow(images, min[0], max[0]);
+                    }
+                }
             }
-            return in;
         }
 
         /**
-         * Intermediate helper method to delegate to
-         * {@link #processTile(ClassifiedRegion, int[], int, PixelFusion, ArrayList, ArrayList, LocalizableByDimCursor, float[], int[], int, int[], long[], ImagePlus)}
+         * Fuses one row from x0 to x1 (inclusive), the other coordinates are
+         * taken from {@code position}.
          */
-        private void processTile(final ClassifiedRegion r, final int depth,
-                final PixelFusion myFusion,
-                final ArrayList<InvertibleBoundable> transform,
-                final ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-                final RandomAccess<T> out, final double[][] inPos,
-                final int threadNumber, final int[] count,
-                final long[] lastDraw, final ImagePlus fusionImp)
-                throws NoninvertibleModelException {
-            processTile(r, r.classArray(), depth, myFusion, transform, in, out,
-                    inPos, threadNumber, count, lastDraw, fusionImp);
+        private void processRow(final int[] images, final int x0,
+                final int x1) throws NoninvertibleModelException {
+            position[0] = x0;
+
+            // transform the start of the row into each input image
+            for (int index = 0; index < images.length; index++) {
+                final int image = images[index];
+                final double[] pos = inPos[image];
+                for (int d = 0; d < pos.length; d++) {
+                    pos[d] = position[d] + offset[d];
+                }
+                transform.get(image).applyInverseInPlace(pos);
+                in.get(image).setPosition(pos);
+            }
+
+            out.setPosition(x0, 0);
+
+            if (direct && images.length == 1) {
+                copyRow(images[0], x0, x1);
+                return;
+            }
+
+            for (int x = x0;; ++x) {
+                myFusion.clear();
+
+                for (int index = 0; index < images.length; index++) {
+                    final int image = images[index];
+                    myFusion.addValue(in.get(image).get().getRealFloat(),
+                            image, inPos[image]);
+                }
+
+                out.get().setReal(myFusion.getValue());
+
+                if (x == x1) {
+                    return;
+                }
+
+                // move one pixel along the row
+                out.fwd(0);
+                for (int index = 0; index < images.length; index++) {
+                    final int image = images[index];
+                    final RealRandomAccess<? extends RealType<?>> ra =
+                            in.get(image);
+                    final int[] dims = stepDims[image];
+                    final double[] step = steps[image];
+                    final double[] pos = inPos[image];
+                    for (int j = 0; j < dims.length; j++) {
+                        pos[dims[j]] += step[j];
+                        ra.move(step[j], dims[j]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Kernel for rows of a region that only one image covers: the
+         * interpolated value is written directly, without the fusion. The
+         * row start is expected to be set already.
+         */
+        private void copyRow(final int image, final int x0, final int x1) {
+            final RealRandomAccess<? extends RealType<?>> ra = in.get(image);
+            final int[] dims = stepDims[image];
+            final double[] step = steps[image];
+
+            for (int x = x0;; ++x) {
+                out.get().setReal(ra.get().getRealFloat());
+
+                if (x == x1) {
+                    return;
+                }
+
+                // move one pixel along the row
+                out.fwd(0);
+                for (int j = 0; j < dims.length; j++) {
+                    ra.move(step[j], dims[j]);
+                }
+            }
         }
 
         /**
-         * Helper method to fuse all the positions of a given
+         * Helper method to fuse all the positions of a box of a given
          * {@link ClassifiedRegion}. Since we do not know the dimensionality of
-         * the region, we recurse over each position of each dimension. The tail
-         * step of each descent iterates over all the images (classes) of the
-         * given region, fusing the pixel values at the current position of each
-         * associated image. This final value is then set in the output.
+         * the region, we recurse over each position of each dimension. The
+         * tail step of each descent iterates over all the images (classes) of
+         * the given region, fusing the pixel values at the current position of
+         * each associated image. This final value is then set in the output.
          */
         private void processTile(final ClassifiedRegion r, final int[] images,
-                final int depth, final PixelFusion myFusion,
-                final ArrayList<InvertibleBoundable> transform,
-                final ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-                final RandomAccess<T> out, final double[][] inPos,
-                final int threadNumber, final int[] count,
-                final long[] lastDraw, final ImagePlus fusionImp)
+                final int[] min, final int[] max, final int depth)
                 throws NoninvertibleModelException {
-            // NB: there are two process tile methods, one for in-memory fusion
-            // and one for writing to disk. They are slightly different, but
-            // if one is updated the other should be as well!
             if (depth < r.size()) {
-                final Interval d = r.get(depth);
-
-                // The intervals of the given region define the bounds of
-                // iteration
-                // So we are recursively defining a nested iteration order to
-                // cover each position of the region
-                int start = d.min();
-                int end = d.max();
-
-                // If this is the dimension being split up for multi-threading
-                // we
-                // need to update the iteration bounds.
-                if (depth == loopDim[0]) {
-                    start += loopOffset;
-                    end = start + loopSize - 1;
-                }
-
-                out.setPosition(start, depth);
-
-                // NB: can't make this loop inclusive since we don't want the
-                // out.fwd
-                // call to go out of bounds, and we can't setPosition (-1) or we
-                // get AIOOB exceptions. So we loop 1 time less than desired,
-                // then
-                // do a straight read after the loop.
-                for (int i = start; i < end; i++) {
+                // The box defines the bounds of iteration. So we are
+                // recursively defining a nested iteration order to cover each
+                // position of the box
+                final boolean inOutput = depth < out.numDimensions();
+
+                for (int i = min[depth]; i <= max[depth]; i++) {
+                    position[depth] = i;
+                    if (inOutput) {
+                        out.setPosition(i, depth);
+                    }
                     // Recurse to the next depth (dimension)
-                    processTile(r, images, depth + 1, myFusion, transform, in,
-                            out, inPos, threadNumber, count, lastDraw,
-                            fusionImp);
-                    // move forward
-                    out.fwd(depth);
+                    processTile(r, images, min, max, depth + 1);
                 }
-
-                // Need to read the final position.
-                processTile(r, images, depth + 1, myFusion, transform, in, out,
-                        inPos, threadNumber, count, lastDraw, fusionImp);
                 return;
             }
 
-            // compute fusion for this position
-            myFusion.clear();
-
             // Loop over the images in this region
             for (int d = 0; d < r.size(); d++) {
-                final double value = out.getDoublePosition(d) + offset[d];
+                final double value = position[d] + offset[d];
 
                 for (int index = 0; index < images.length; index++) {
                     // Get the positions for the current image
@@ -796,6 +2190,18 @@ public class Fusion {
                 }
             }
 
+            // a single image is copied
+            if (direct && images.length == 1) {
+                final int image = images[0];
+                transform.get(image).applyInverseInPlace(inPos[image]);
+                in.get(image).setPosition(inPos[image]);
+                out.get().setReal(in.get(image).get().getRealFloat());
+                return;
+            }
+
+            // compute fusion for this position
+            myFusion.clear();
+
             // Get the value at each input position
             for (int index = 0; index < images.length; index++) {
                 final int image = images[index];
@@ -809,80 +2215,6 @@ public class Fusion {
 
             // set value
             out.get().setReal(myFusion.getValue());
-
-            // Display progress if on thread 0
-            if (threadNumber == 0) {
-                count[0]++;
-                // just every 10000'th pixel
-                if (count[0] % 10000 == 0) {
-                    lastDraw[0] = drawFusion(lastDraw[0], fusionImp);
-                    IJ.showProgress(count[0] / positionsPerThread);
-                }
-            }
-        }
-    }
-
-    /**
-     * Recursive method to construct all possible {@link ClassifiedRegion}
-     * combinations from an arbitrary number of {@link Interval} lists. One list
-     * is required for each dimension of the final regions. The
-     * {@code allRegions} list is then populated with these combinations.
-     *
-     * @param rawTiles
-     * @param placedTiles
-     */
-    private static void buildAllRegions(final List<Interval>[] allIntervals,
-            final int[] ivalIndices, final int depth,
-            final ClassifiedRegion queryTile,
-            final ClassifiedRegion placedTile,
-            final Set<ClassifiedRegion> placedTiles,
-            final Stack<ClassifiedRegion> rawTiles) {
-        if (depth != ivalIndices.length) {
-            for (int i = 0; i < allIntervals[depth].size(); i++) {
-                buildAllRegions(allIntervals, ivalIndices, depth + 1,
-                        queryTile, placedTile, placedTiles, rawTiles);
-                // increment the index at this position in the intervals array
-                ivalIndices[depth]++;
-            }
-            ivalIndices[depth] = 0;
-            return;
-        }
-
-        // Build a new region using the current specified indices
-        final ClassifiedRegion region =
-                new ClassifiedRegion(allIntervals.length);
-
-        boolean inQuery = true;
-        boolean inPlaced = true;
-        boolean validIval = true;
-        for (int i = 0; validIval && i < allIntervals.length; i++) {
-            final Interval newIval =
-                    new Interval(allIntervals[i].get(ivalIndices[i]));
-            final Interval queryIval = queryTile.get(i);
-            final Interval placedIval = placedTile.get(i);
-            region.set(newIval, i);
-            // Each sub-region must be fully contained in at least one parent,
-            // otherwise it is invalid.
-            inQuery =
-                    inQuery && queryIval.contains(newIval.min()) == 0
-                            && queryIval.contains(newIval.max()) == 0;
-            inPlaced =
-                    inPlaced && placedIval.contains(newIval.min()) == 0
-                            && placedIval.contains(newIval.max()) == 0;
-            validIval = inQuery || inPlaced;
-        }
-
-        if (validIval) {
-            if (inQuery) {
-                region.addAllClasses(queryTile);
-                rawTiles.push(region);
-            }
-            if (inPlaced) {
-                region.addAllClasses(placedTile);
-                if (!inQuery) {
-                    placedTiles.add(region);
-                }
-            }
         }
     }
 
@@ -922,7 +2254,8 @@ public class Fusion {
                     long lastDraw = 0;
                     ImagePlus fusionImp = null;
 
-                    if (displayFusion && myImage == 0) {
+                    if (displayFusion && myImage == 0
+                            && output instanceof ImagePlusImg) {
                         try {
                             fusionImp =
                                     ((ImagePlusImg<?, ?>) output)
@@ -946,14 +2279,34 @@ public class Fusion {
                         translation[d] = (int) Math.round(tmp[d]);
                     }
 
+                    // where pixel 0 of the image goes in the output, rounded
+                    // down, also if it is negative
+                    final long[] shift = new long[numDimensions];
+                    for (int d = 0; d < numDimensions; ++d) {
+                        shift[d] =
+                                (long) Math.floor(translation[d] - offset[d]);
+                    }
+
+                    // same type and both planar, copy whole rows
+                    if (canCopyRows(image, output)) {
+                        copyRows((PlanarImg<?, ?>) image,
+                                (PlanarImg<?, ?>) output, shift,
+                                myImage == 0, fusionImp);
+
+                        if (fusionImp != null) {
+                            fusionImp.hide();
+                        }
+                        return;
+                    }
+
                     final Cursor<? extends RealType<?>> cursor =
                             image.localizingCursor();
                     final RandomAccess<? extends RealType<?>> randomAccess =
                             output.randomAccess();
-                    final int[] pos = new int[numDimensions];
+                    final long[] pos = new long[numDimensions];
 
                     int j = 0;
-                    while (cursor.hasNext()) {
+                    pixels: while (cursor.hasNext()) {
                         cursor.fwd();
                         cursor.localize(pos);
 
@@ -968,8 +2321,10 @@ public class Fusion {
                         }
 
                         for (int d = 0; d < numDimensions; ++d) {
-                            pos[d] += translation[d];
-                            pos[d] -= offset[d];
+                            pos[d] += shift[d];
+                            if (pos[d] < 0 || pos[d] >= output.dimension(d)) {
+                                continue pixels;
+                            }
                         }
 
                         randomAccess.setPosition(pos);
@@ -986,6 +2341,85 @@ public class Fusion {
         SimpleMultiThreading.startAndJoin(threads);
     }
 
+    /**
+     * @return if the pixels of the input can be copied row by row into the
+     *         output, which is the case if both store their planes as
+     *         primitive arrays of the same type.
+     */
+    private static boolean canCopyRows(final Img<? extends RealType<?>> input,
+            final Img<? extends RealType<?>> output) {
+        if (!(input instanceof PlanarImg) || !(output instanceof PlanarImg)
+                || input.numDimensions() > 3) {
+            return false;
+        }
+
+        final Object inPlane =
+                ((PlanarImg<?, ?>) input).getPlane(0).getCurrentStorageArray();
+        final Object outPlane =
+                ((PlanarImg<?, ?>) output).getPlane(0).getCurrentStorageArray();
+
+        return input.firstElement().getClass() == output.firstElement()
+                .getClass()
+                && inPlane.getClass() == outPlane.getClass();
+    }
+
+    /**
+     * Copies all rows of the input that are inside of the output with
+     * {@link System#arraycopy}. A pixel at position p of the input goes to p
+     * + shift in the output.
+     *
+     * @param showProgress
+     *            - update the progress bar and the preview after each plane
+     * @param fusionImp
+     *            - the preview, may be null
+     */
+    private static void copyRows(final PlanarImg<?, ?> input,
+            final PlanarImg<?, ?> output, final long[] shift,
+            final boolean showProgress, final ImagePlus fusionImp) {
+        final int n = input.numDimensions();
+        final long[] srcMin = new long[3];
+        final long[] srcMax = new long[3];
+
+        // clip the input to the output, 2d images have a single plane
+        for (int d = 0; d < 3; ++d) {
+            final long inDim = d < n ? input.dimension(d) : 1;
+            final long outDim = d < n ? output.dimension(d) : 1;
+            final long s = d < n ? shift[d] : 0;
+
+            srcMin[d] = Math.max(0, -s);
+            srcMax[d] = Math.min(inDim - 1, outDim - 1 - s);
+
+            if (srcMax[d] < srcMin[d]) {
+                return;
+            }
+        }
+
+        final int inWidth = (int) input.dimension(0);
+        final int outWidth = (int) output.dimension(0);
+        final int length = (int) (srcMax[0] - srcMin[0] + 1);
+        final long shiftZ = n > 2 ? shift[2] : 0;
+        long lastDraw = 0;
+
+        for (long z = srcMin[2]; z <= srcMax[2]; ++z) {
+            final Object src = input.getPlane((int) z).getCurrentStorageArray();
+            final Object dst =
+                    output.getPlane((int) (z + shiftZ))
+                            .getCurrentStorageArray();
+
+            for (long y = srcMin[1]; y <= srcMax[1]; ++y) {
+                System.arraycopy(src, (int) (y * inWidth + srcMin[0]), dst,
+                        (int) ((y + shift[1]) * outWidth + srcMin[0]
+                                + shift[0]), length);
+            }
+
+            if (showProgress) {
+                lastDraw = drawFusion(lastDraw, fusionImp);
+                IJ.showProgress((double) (z - srcMin[2] + 1)
+                        / (double) (srcMax[2] - srcMin[2] + 1));
+            }
+        }
+    }
+
     /**
      * Fuse one slice/volume (one channel)
      *
@@ -1008,156 +2442,438 @@ public class Fusion {
             final double[] offset,
             final ArrayList<InvertibleBoundable> transform,
             final PixelFusion fusion, final String outputDirectory) {
-        final int numImages = input.size();
-        final int numDimensions = offset.length;
-
-        final List<ClassifiedRegion> tiles =
-                buildTileList(numImages, numDimensions, transform, input,
-                        offset);
+        final FusionContext<T> context =
+                new FusionContext<T>(createFusionPool(), transform, offset);
 
-        final ArrayList<RealRandomAccess<? extends RealType<?>>> in =
-                new ArrayList<RealRandomAccess<? extends RealType<?>>>();
+        try {
+            writeBlock(outputSlice, 0, numSlices, numSlices, t,
+                    numTimePoints, c, numChannels, input, fusion,
+                    outputDirectory, context);
+        } finally {
+            context.shutdown();
+        }
+    }
 
-        for (int i = 0; i < numImages; ++i) {
-            in.add(input.get(i).createInterpolator());
+    /**
+     * Fuse one slice/volume (one channel) and write it to disk slice by
+     * slice. Up to {@link #writeQueueLength} slices are fused concurrently by
+     * the pool of the context, each into its own slice buffer, while the
+     * calling thread writes the finished slices in order.
+     *
+     * @param outputSlice
+     *            - same the type of the ImagePlus input, just one slice which
+     *            will be written to the output directory
+     * @param firstSlice
+     *            - the first slice to write
+     * @param endSlice
+     *            - the slice after the last one to write
+     * @param numSlices
+     *            - the number of slices of the volume
+     * @param input
+     *            - FloatType, because of Interpolation that needs to be done
+     * @param context
+     *            - the state shared by all blocks fused with the same models
+     */
+    private static <T extends RealType<T>> void writeBlock(
+            final Img<T> outputSlice,
+            final int firstSlice,
+            final int endSlice,
+            final int numSlices,
+            final int t,
+            final int numTimePoints,
+            final int c,
+            final int numChannels,
+            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+            final PixelFusion fusion, final String outputDirectory,
+            final FusionContext<T> context) {
+        final ForkJoinPool pool = context.pool;
+        final List<ClassifiedRegion> tiles = context.getTiles(input);
+        final TileProcessorFactory<T> factory =
+                context.getFactory(input, fusion);
+
+        final long sliceSize = outputSlice.size();
+        final long pixelsPerTask =
+                Math.max(minPixelsPerTask,
+                        sliceSize / (2L * pool.getParallelism()));
+        final FusionProgress progress =
+                new FusionProgress(sliceSize * (endSlice - firstSlice), null);
+
+        // the slice buffers, the given slice is the first one
+        final int queueLength = Math.max(1, Math.min(endSlice - firstSlice,
+                writeQueueLength));
+        final ArrayDeque<Img<T>> freeBuffers = new ArrayDeque<Img<T>>();
+        final long[] sliceDim = new long[outputSlice.numDimensions()];
+        outputSlice.dimensions(sliceDim);
+
+        freeBuffers.add(outputSlice);
+        for (int i = 1; i < queueLength; ++i) {
+            freeBuffers.add(outputSlice.factory().create(sliceDim,
+                    outputSlice.firstElement().createVariable()));
         }
 
-        final PixelFusion myFusion = fusion.copy();
+        // slices that are being fused, in the order they will be written
+        final ArrayDeque<ForkJoinTask<Img<T>>> queue =
+                new ArrayDeque<ForkJoinTask<Img<T>>>();
+
+        IJ.showProgress(0);
 
         try {
-            final long sliceSize = outputSlice.size();
-            for (int slice = 0; slice < numSlices; ++slice) {
-                IJ.showStatus("Fusing time point: " + t + " of "
-                        + numTimePoints + ", " + "channel: " + c + " of "
-                        + numChannels + ", slice: " + (slice + 1) + " of "
-                        + numSlices + "...");
-
-                final RandomAccess<T> out = outputSlice.randomAccess();
-                final double[][] inPos = new double[numImages][numDimensions];
-                final int[] count = new int[1];
-
-                IJ.showProgress(0);
-
-                // just like fuseBlock but pin to the current slice #
-                for (long tileIndex = 0; tileIndex < tiles.size(); tileIndex++) {
-                    final ClassifiedRegion currentTile =
-                            tiles.get((int) tileIndex);
-                    writeTile(currentTile, 0, slice, myFusion, transform,
-                            offset, in, out, inPos, count, sliceSize, numSlices);
+            int written = firstSlice;
+            for (int slice = firstSlice; slice < endSlice
+                    || !queue.isEmpty(); ++slice) {
+                if (slice < endSlice) {
+                    queue.add(pool.submit(new SliceTask<T>(tiles, freeBuffers
+                            .poll(), slice, factory, pixelsPerTask, progress)));
                 }
 
-                // write the slice
-                final ImagePlus outImp =
-                        ((ImagePlusImg<?, ?>) outputSlice).getImagePlus();
-                final FileSaver fs = new FileSaver(outImp);
-                fs.saveAsTiff(new File(outputDirectory, "img_t"
-                        + lz(t, numTimePoints) + "_z"
-                        + lz(slice + 1, numSlices) + "_c" + lz(c, numChannels))
-                        .getAbsolutePath());
-            }
-        } catch (final NoninvertibleModelException e) {
-            Log.error("Cannot invert model, qutting.");
-            return;
+                // write the oldest slice once the queue is full or all slices
+                // have been submitted
+                if (queue.size() == queueLength || slice >= endSlice - 1) {
+                    final Img<T> finished = queue.poll().join();
+
+                    IJ.showStatus("Fusing time point: " + t + " of "
+                            + numTimePoints + ", " + "channel: " + c + " of "
+                            + numChannels + ", writing slice: " + (written + 1)
+                            + " of " + numSlices + "...");
+
+                    // write the slice
+                    final ImagePlus outImp =
+                            ((ImagePlusImg<?, ?>) finished).getImagePlus();
+                    final FileSaver fs = new FileSaver(outImp);
+                    fs.saveAsTiff(new File(outputDirectory, "img_t"
+                            + lz(t, numTimePoints) + "_z"
+                            + lz(written + 1, numSlices) + "_c"
+                            + lz(c, numChannels)).getAbsolutePath());
+
+                    ++written;
+                    freeBuffers.add(finished);
+                }
+            }
         } catch (final ImgLibException e) {
             Log.error("Output image has no ImageJ type: " + e);
             return;
+        } catch (final RuntimeException e) {
+            if (!isNoninvertible(e)) {
+                throw e;
+            }
+            Log.error("Cannot invert model, quitting.");
+            return;
+        } finally {
+            // do not leave slices behind that are still being fused, the
+            // ones that already started have to finish before the processors
+            // can be released
+            for (final ForkJoinTask<Img<T>> task : queue) {
+                task.cancel(false);
+            }
+            for (final ForkJoinTask<Img<T>> task : queue) {
+                task.quietlyJoin();
+            }
+            context.release();
         }
     }
 
     /**
-     * Helper method to fuse all the positions of a given
-     * {@link ClassifiedRegion}. Since we do not know the dimensionality of the
-     * region, we recurse over each position of each dimension. The tail step of
-     * each descent iterates over all the images (classes) of the given region,
-     * fusing the pixel values at the current position of each associated image.
-     * This final value is then set in the output.
+     * Fork/join task that fuses one slice of the output into a slice buffer.
      */
-    private static <T extends RealType<T>> void writeTile(
-            final ClassifiedRegion r, final int depth, final int slice,
-            final PixelFusion myFusion,
-            final ArrayList<InvertibleBoundable> transform,
-            final double[] offset,
-            final ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-            final RandomAccess<T> out, final double[][] inPos,
-            final int[] count, final long sliceSize, final int numSlices)
-            throws NoninvertibleModelException {
-        // NB: there are two process tile methods, one for in-memory fusion
-        // and one for writing to disk. They are slightly different, but
-        // if one is updated the other should be as well!
-        // For 3D datasets, we fix the last dimension to the given slice #
-        if (depth < out.numDimensions()) {
-            final Interval d = r.get(depth);
-            // The intervals of the given region define the bounds of iteration
-            // So we are recursively defining a nested iteration order to cover
-            // each position of the region
-            final int start = d.min();
-            final int end = d.max();
-
-            out.setPosition(start, depth);
-
-            for (int i = start; i < end; i++) {
-                // The position array will be used to set the in and out
-                // positions.
-                // It specifies where we are in the output image
-                // Recurse to the next depth (dimension)
-                writeTile(r, depth + 1, slice, myFusion, transform, offset, in,
-                        out, inPos, count, sliceSize, numSlices);
-                out.fwd(depth);
-            }
-
-            writeTile(r, depth + 1, slice, myFusion, transform, offset, in,
-                    out, inPos, count, sliceSize, numSlices);
+    private static class SliceTask<T extends RealType<T>> extends
+            RecursiveTask<Img<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClassifiedRegion> tiles;
+        private final Img<T> buffer;
+        private final int slice;
+        private final TileProcessorFactory<T> factory;
+        private final long pixelsPerTask;
+        private final FusionProgress progress;
+
+        public SliceTask(final List<ClassifiedRegion> tiles,
+                final Img<T> buffer, final int slice,
+                final TileProcessorFactory<T> factory,
+                final long pixelsPerTask, final FusionProgress progress) {
+            this.tiles = tiles;
+            this.buffer = buffer;
+            this.slice = slice;
+            this.factory = factory;
+            this.pixelsPerTask = pixelsPerTask;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Img<T> compute() {
+            // only the regions that intersect this slice (all of them in 2d)
+            final List<ClassifiedRegion> sliceTiles =
+                    new ArrayList<ClassifiedRegion>();
+            for (final ClassifiedRegion tile : tiles) {
+                if (tile.size() <= buffer.numDimensions()
+                        || tile.get(tile.size() - 1).contains(slice) == 0) {
+                    sliceTiles.add(tile);
+                }
+            }
+
+            new RegionListTask<T>(sliceTiles, 0, sliceTiles.size(), buffer,
+                    slice, factory, pixelsPerTask, progress).compute();
+
+            return buffer;
+        }
+    }
+
+    /**
+     * Fuse one volume (one channel of one timepoint) into a chunked block
+     * store in the output directory. The blocks are fused and written in
+     * parallel by the pool of the context, each worker only holds the block
+     * it is working on in memory.
+     *
+     * @param size
+     *            - the size of the fused volume
+     * @param input
+     *            - FloatType, because of Interpolation that needs to be done
+     * @param context
+     *            - the state shared by all blocks fused with the same models
+     */
+    private static <T extends RealType<T> & NativeType<T>> void writeChunked(
+            final T targetType,
+            final int[] size,
+            final int c,
+            final int t,
+            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+            final PixelFusion fusion, final String outputDirectory,
+            final FusionContext<T> context) {
+        final int numDimensions = size.length;
+        final long[] dimensions = new long[numDimensions];
+        final int[] blockSize = new int[numDimensions];
+
+        for (int d = 0; d < numDimensions; ++d) {
+            dimensions[d] = size[d];
+            blockSize[d] =
+                    Math.max(1, Math.min(size[d],
+                            chunkSize[Math.min(d, chunkSize.length - 1)]));
+
+            // the pyramid needs even block sizes
+            if (pyramidLevels > 0 && blockSize[d] > 1 && blockSize[d] % 2 != 0) {
+                ++blockSize[d];
+            }
+        }
+
+        final String path = "c" + (c - 1) + "/t" + (t - 1);
+        final String dataType = BlockStore.dataType(targetType);
+        final BlockStore.Dataset dataset;
+        final BlockPyramid pyramid;
+
+        try {
+            final BlockStore store = new BlockStore(new File(outputDirectory));
+            dataset =
+                    store.createDataset(path + "/s0", dimensions, blockSize,
+                            dataType, compressChunks);
+
+            if (pyramidLevels > 0) {
+                pyramid =
+                        new BlockPyramid(store, path, dataset, dataType,
+                                compressChunks, pyramidLevels);
+            } else {
+                pyramid = null;
+            }
+        } catch (final IOException e) {
+            Log.error("Cannot create block store: " + e);
             return;
         }
 
-        // compute fusion for this position
-        myFusion.clear();
+        final long[] gridSize = dataset.getGridSize();
+        long numBlocks = 1;
+        long numPixels = 1;
+        for (int d = 0; d < numDimensions; ++d) {
+            numBlocks *= gridSize[d];
+            numPixels *= dimensions[d];
+        }
 
-        final int[] images = r.classArray();
+        final BlockFuser<T> fuser =
+                new BlockFuser<T>(context, input, fusion, blockSize);
+        final FusionProgress progress = new FusionProgress(numPixels, null);
 
-        // Loop over the images in this region
-        for (int d = 0; d < out.numDimensions(); d++) {
-            final double value = out.getDoublePosition(d) + offset[d];
+        IJ.showProgress(0);
 
-            for (int index = 0; index < images.length; index++) {
-                // Get the positions for the current image
-                inPos[images[index]][d] = value;
+        try {
+            invoke(context.pool, new ChunkTask<T>(0, numBlocks, dataset,
+                    pyramid, fuser, targetType, progress));
+        } catch (final RuntimeException e) {
+            if (isNoninvertible(e)) {
+                Log.error("Cannot invert model, quitting.");
+            } else if (e.getCause() instanceof IOException) {
+                Log.error("Cannot write block store: " + e.getCause());
+            } else {
+                throw e;
             }
+        } finally {
+            context.release();
         }
+    }
 
-        if (r.size() > out.numDimensions()) {
-            final int dim = r.size() - 1;
-            final double value = slice + offset[dim];
-            for (int index = 0; index < images.length; index++) {
-                // Get the positions for the current image
-                inPos[images[index]][dim] = value;
+    /**
+     * Fork/join task that fuses and writes a range of blocks (in raster
+     * order of the block grid) of a chunked volume. Every written block is
+     * passed on to the pyramid, if there is one.
+     */
+    private static class ChunkTask<T extends RealType<T> & NativeType<T>>
+            extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long from, to;
+        private final BlockStore.Dataset dataset;
+        private final BlockPyramid pyramid;
+        private final BlockFuser<T> fuser;
+        private final T type;
+        private final FusionProgress progress;
+
+        public ChunkTask(final long from, final long to,
+                final BlockStore.Dataset dataset, final BlockPyramid pyramid,
+                final BlockFuser<T> fuser, final T type,
+                final FusionProgress progress) {
+            this.from = from;
+            this.to = to;
+            this.dataset = dataset;
+            this.pyramid = pyramid;
+            this.fuser = fuser;
+            this.type = type;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final long mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask<T>(from, mid, dataset, pyramid, fuser,
+                        type, progress), new ChunkTask<T>(mid, to, dataset,
+                        pyramid, fuser, type, progress));
+            } else if (to - from == 1) {
+                try {
+                    writeChunk(from);
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        private void writeChunk(final long block) throws IOException {
+            final long[] dimensions = dataset.getDimensions();
+            final int[] blockSize = dataset.getBlockSize();
+            final long[] gridSize = dataset.getGridSize();
+            final int n = dimensions.length;
+
+            // the box of the block, truncated at the border of the volume
+            final long[] gridPosition = new long[n];
+            final long[] min = new long[n];
+            final long[] blockDim = new long[n];
+
+            long remainder = block;
+            for (int d = 0; d < n; ++d) {
+                gridPosition[d] = remainder % gridSize[d];
+                remainder /= gridSize[d];
+
+                min[d] = gridPosition[d] * blockSize[d];
+                blockDim[d] = Math.min(blockSize[d], dimensions[d] - min[d]);
+            }
+
+            final Img<T> buffer =
+                    new ArrayImgFactory<T>().create(blockDim,
+                            type.createVariable());
+            fuser.fuse(Views.translate(buffer, min), progress);
+
+            dataset.writeBlock(gridPosition, buffer);
+
+            if (pyramid != null) {
+                pyramid.addBlock(gridPosition, buffer);
+            }
+        }
+    }
+
+    /**
+     * Fuses arbitrary boxes of the output, e.g. the blocks of a chunked or
+     * lazily fused volume, in the calling thread. The regions intersecting a
+     * box are found through a spatial index of the region decomposition.
+     */
+    static class BlockFuser<T extends RealType<T>> {
+        private final FusionContext<T> context;
+        private final ClassifiedRegionIndex index;
+        private final TileProcessorFactory<T> factory;
+
+        private BlockFuser(
+                final FusionContext<T> context,
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+                final PixelFusion fusion, final int[] blockSize) {
+            this.context = context;
+
+            index = new ClassifiedRegionIndex(blockSize);
+            for (final ClassifiedRegion tile : context.getTiles(input)) {
+                index.add(tile);
             }
+
+            factory = context.getFactory(input, fusion);
+        }
+
+        /**
+         * @param input
+         *            - the input images
+         * @param transform
+         *            - the transformation of each image
+         * @param offset
+         *            - the offset of the output
+         * @param fusion
+         *            - the pixel fusion
+         * @param blockSize
+         *            - the typical size of the fused boxes
+         */
+        BlockFuser(
+                final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+                final ArrayList<InvertibleBoundable> transform,
+                final double[] offset, final PixelFusion fusion,
+                final int[] blockSize) {
+            this(new FusionContext<T>(null, transform, offset), input, fusion,
+                    blockSize);
         }
 
-        // Get the value at each input position
-        for (int index = 0; index < images.length; index++) {
-            final int image = images[index];
-            // Transform to get input position
-            transform.get(image).applyInverseInPlace(inPos[image]);
-            in.get(image).setPosition(inPos[image]);
-            // fuse
-            myFusion.addValue(in.get(image).get().getRealFloat(), image,
-                    inPos[image]);
+        /**
+         * Fuses all pixels of the target interval.
+         */
+        void fuse(final RandomAccessibleInterval<T> target) {
+            fuse(target, null);
         }
 
-        // set value
-        out.get().setReal(myFusion.getValue());
+        /**
+         * Fuses all pixels of the target interval.
+         *
+         * @param progress
+         *            - counts the fused pixels, may be null
+         */
+        void fuse(final RandomAccessibleInterval<T> target,
+                final FusionProgress progress) {
+            final int n = target.numDimensions();
+            final ClassifiedRegion box = new ClassifiedRegion(n);
+
+            for (int d = 0; d < n; ++d) {
+                box.set(new Interval((int) target.min(d), (int) target.max(d)),
+                        d);
+            }
+
+            for (final ClassifiedRegion tile : index.findAllIntersecting(box)) {
+                final int[] tileMin = new int[n];
+                final int[] tileMax = new int[n];
 
-        // set value
-        out.get().setReal(myFusion.getValue());
+                for (int d = 0; d < n; ++d) {
+                    tileMin[d] = Math.max(tile.get(d).min(), box.get(d).min());
+                    tileMax[d] = Math.min(tile.get(d).max(), box.get(d).max());
+                }
 
-        // Update progress if necessary
-        count[0]++;
-        if (count[0] % 10000 == 0) {
-            IJ.showProgress((double) (count[0] + (slice * sliceSize))
-                    / (double) (numSlices * sliceSize));
+                // boxes are small enough, they are not split any further
+                new RegionTask<T>(tile, tileMin, tileMax, target, factory,
+                        Long.MAX_VALUE, progress).compute();
+            }
         }
 
+        /**
+         * Drops the per-thread processors.
+         */
+        void release() {
+            context.shutdown();
+        }
     }
 
     private static final String lz(final int num, final int max) {
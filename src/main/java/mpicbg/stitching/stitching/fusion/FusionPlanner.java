@@ -0,0 +1,221 @@
+package mpicbg.stitching.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Predicts the peak heap usage of the different ways {@link Fusion} can
+ * produce its output and chooses the one that fits into the heap. The
+ * estimates count the output buffers and the copies of the inputs the fusion
+ * makes, i.e. the float copies of color images for subpixel resolution and
+ * the loaded slices of virtual stacks. The input images themselves are not
+ * counted unless they are virtual, they are in memory already.
+ */
+public class FusionPlanner {
+
+    /**
+     * How the fused image is produced.
+     */
+    public enum Strategy {
+        /** the complete fused image is kept in memory and displayed */
+        IN_MEMORY,
+        /** every volume is fused and written to disk slice by slice */
+        SLICES,
+        /** like slices, but only the input slices of a slab are loaded */
+        SLABS,
+        /** every volume is written as chunked block store */
+        CHUNKED
+    }
+
+    /**
+     * The slab thickness used if {@link Fusion#slabThickness} is not set
+     */
+    public static int defaultSlabThickness = 16;
+
+    private final int[] size;
+    private final int numChannels;
+    private final int numTimePoints;
+    private final int bytesPerPixel;
+    private final long inputBytes;
+    private final long inputSliceBytes;
+    private final boolean fitsImagePlus;
+
+    /**
+     * Computes the size of the output the same way {@link Fusion#fuse} does.
+     */
+    public <T extends RealType<T> & NativeType<T>> FusionPlanner(
+            final T targetType, final ArrayList<ImagePlus> images,
+            final ArrayList<InvertibleBoundable> models,
+            final int dimensionality, final boolean subpixelResolution) {
+        final double[] offset = new double[dimensionality];
+        size = new int[dimensionality];
+
+        Fusion.estimateBounds(offset, size, images, models, dimensionality);
+
+        if (subpixelResolution) {
+            for (int d = 0; d < size.length; ++d) {
+                ++size[d];
+            }
+        }
+
+        numChannels = images.get(0).getNChannels();
+        numTimePoints = images.get(0).getNFrames();
+        bytesPerPixel = (targetType.getBitsPerPixel() + 7) / 8;
+        fitsImagePlus = (long) size[0] * size[1] <= Integer.MAX_VALUE;
+
+        // what is allocated for the inputs of one volume, in total and per
+        // input slice
+        long volume = 0;
+        long slice = 0;
+
+        for (final ImagePlus imp : images) {
+            final long slicePixels = (long) imp.getWidth() * imp.getHeight();
+            long bytes = 0;
+
+            if (subpixelResolution && ImageInterpolation.copiesToFloat(imp)) {
+                bytes += 4;
+            }
+            if (imp.getStack().isVirtual()) {
+                bytes += (imp.getBitDepth() + 7) / 8;
+            }
+
+            volume += bytes * slicePixels * imp.getNSlices();
+            slice = Math.max(slice, bytes * slicePixels);
+        }
+
+        inputBytes = volume;
+        inputSliceBytes = slice * images.size();
+    }
+
+    /**
+     * @return the predicted peak number of bytes the strategy needs, or
+     *         {@link Long#MAX_VALUE} if it is not possible for this output
+     */
+    public long estimateBytes(final Strategy strategy) {
+        final long slicePixels = (long) size[0] * size[1];
+        final long sliceBytes = slicePixels * bytesPerPixel;
+        final int numSlices = size.length == 3 ? size[2] : 1;
+        final long volumeBytes = sliceBytes * numSlices;
+
+        switch (strategy) {
+        case IN_MEMORY:
+            if (!fitsImagePlus) {
+                return Long.MAX_VALUE;
+            }
+
+            // reordering the channels of a 3d composite copies the stack
+            final long output = volumeBytes * numChannels * numTimePoints;
+            return (size.length == 3 && numChannels > 1 ? 2 : 1) * output
+                    + inputBytes;
+        case SLICES:
+            if (!fitsImagePlus) {
+                return Long.MAX_VALUE;
+            }
+            return sliceBytes * Math.min(numSlices, Fusion.writeQueueLength)
+                    + inputBytes;
+        case SLABS:
+            if (!fitsImagePlus || size.length != 3) {
+                return Long.MAX_VALUE;
+            }
+
+            // the slices of the slab and the ones next to it for the
+            // interpolation
+            return sliceBytes * Math.min(numSlices, Fusion.writeQueueLength)
+                    + inputSliceBytes * Math.min(numSlices,
+                            slabThickness() + 3);
+        case CHUNKED:
+            long blockBytes = bytesPerPixel;
+            for (int d = 0; d < size.length; ++d) {
+                blockBytes *=
+                        Math.min(size[d], Fusion.chunkSize[Math.min(d,
+                                Fusion.chunkSize.length - 1)]);
+            }
+
+            // one block per worker
+            return blockBytes
+                    * Runtime.getRuntime().availableProcessors() + inputBytes;
+        default:
+            throw new IllegalArgumentException("Unknown strategy "
+                    + strategy);
+        }
+    }
+
+    /**
+     * Chooses how to fuse. The fused image is kept in memory if it should be
+     * and it fits, otherwise it is written to disk: slice by slice if that
+     * fits, then slab by slab, and as chunks otherwise. If nothing fits the
+     * strategy that needs the least memory is chosen.
+     *
+     * @param availableBytes
+     *            - the heap that can be used, e.g.
+     *            {@link mpicbg.stitching.utils.Memory#availableHeap()}
+     * @param inMemory
+     *            - if the fused image should be kept in memory
+     */
+    public Strategy choose(final long availableBytes, final boolean inMemory) {
+        if (inMemory && estimateBytes(Strategy.IN_MEMORY) <= availableBytes) {
+            return Strategy.IN_MEMORY;
+        }
+
+        final Strategy[] disk =
+                new Strategy[] { Strategy.SLICES, Strategy.SLABS,
+                        Strategy.CHUNKED };
+        Strategy smallest = disk[0];
+
+        for (final Strategy strategy : disk) {
+            if (estimateBytes(strategy) <= availableBytes) {
+                return strategy;
+            }
+            if (estimateBytes(strategy) < estimateBytes(smallest)) {
+                smallest = strategy;
+            }
+        }
+
+        return smallest;
+    }
+
+    /**
+     * @return the slab thickness used by {@link Strategy#SLABS}
+     */
+    public int slabThickness() {
+        return Fusion.slabThickness > 0 ? Fusion.slabThickness
+                : defaultSlabThickness;
+    }
+
+    /**
+     * @return the size of the fused image
+     */
+    public int[] getSize() {
+        return size.clone();
+    }
+
+    /**
+     * @return the estimates of all strategies, for the log
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append("Fused image: ");
+        for (int d = 0; d < size.length; ++d) {
+            report.append(d == 0 ? "" : "x").append(size[d]);
+        }
+        report.append(" px, ").append(numChannels).append(" channel(s), ")
+                .append(numTimePoints).append(" timepoint(s)");
+
+        for (final Strategy strategy : Strategy.values()) {
+            final long bytes = estimateBytes(strategy);
+            report.append("\n  ").append(strategy).append(": ");
+            if (bytes == Long.MAX_VALUE) {
+                report.append("not possible");
+            } else {
+                report.append(bytes / (1024 * 1024)).append(" MB");
+            }
+        }
+
+        return report.toString();
+    }
+}
@@ -1,13 +1,21 @@
 package mpicbg.stitching.stitching.fusion;
 
+import ij.ImagePlus;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.interpolation.Interpolator;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
 /**
@@ -20,6 +28,7 @@ import net.imglib2.view.Views;
  */
 public class ImageInterpolation<T extends RealType<T>> {
     final Img<T> image;
+    final long[] dimensions;
     final RealRandomAccessible<T> interpolated;
     final InterpolatorFactory<T, RandomAccessible<T>> interpolatorFactory;
 
@@ -28,7 +37,9 @@ public class ImageInterpolation<T extends RealType<T>> {
             final InterpolatorFactory<T, RandomAccessible<T>> interpolatorFactory,
             final boolean mirror) {
         this.image = image;
+        this.dimensions = new long[image.numDimensions()];
         this.interpolatorFactory = interpolatorFactory;
+        image.dimensions(dimensions);
         if (mirror) {
             this.interpolated =
                     Views.interpolate(Views.extendMirrorSingle(image),
@@ -40,11 +51,94 @@ public class ImageInterpolation<T extends RealType<T>> {
         }
     }
 
+    /**
+     * Interpolates a part of a larger image, e.g. a few slices of a stack.
+     * Only positions within (or next to) the part can be interpolated.
+     *
+     * @param part
+     *            - the loaded part of the image
+     * @param min
+     *            - the position of the part in the image
+     * @param dimensions
+     *            - the size of the complete image
+     */
+    public ImageInterpolation(
+            final Img<T> part,
+            final long[] min,
+            final long[] dimensions,
+            final InterpolatorFactory<T, RandomAccessible<T>> interpolatorFactory,
+            final boolean mirror) {
+        this.image = part;
+        this.dimensions = dimensions.clone();
+        this.interpolatorFactory = interpolatorFactory;
+        if (mirror) {
+            this.interpolated =
+                    Views.interpolate(Views.extendMirrorSingle(Views
+                            .translate(part, min)), interpolatorFactory);
+        } else {
+            this.interpolated =
+                    Views.interpolate(
+                            Views.extendZero(Views.translate(part, min)),
+                            interpolatorFactory);
+        }
+    }
+
+    /**
+     * @return the loaded image, which is only a part of the image if it was
+     *         created from a part
+     */
     public Img<T> getImg() {
         return image;
     }
 
+    public int numDimensions() {
+        return dimensions.length;
+    }
+
+    /**
+     * @return the size of the complete image
+     */
+    public long dimension(final int d) {
+        return dimensions[d];
+    }
+
     public RealRandomAccess<T> createInterpolator() {
         return interpolated.realRandomAccess();
     }
+
+    /**
+     * @return the image as float for interpolation. 8 and 16 bit images are
+     *         converted when a pixel is read and float images are wrapped,
+     *         so no copy is made. All other types (i.e. color) are copied.
+     */
+    public static Img<FloatType> wrapFloat(final ImagePlus imp) {
+        switch (imp.getType()) {
+        case ImagePlus.GRAY32:
+            return ImageJFunctions.wrapFloat(imp);
+        case ImagePlus.GRAY16:
+            return convertOnRead(ImageJFunctions.wrapShort(imp));
+        case ImagePlus.GRAY8:
+            return convertOnRead(ImageJFunctions.wrapByte(imp));
+        default:
+            return ImageJFunctions.convertFloat(imp);
+        }
+    }
+
+    /**
+     * @return if {@link #wrapFloat(ImagePlus)} copies the image
+     */
+    public static boolean copiesToFloat(final ImagePlus imp) {
+        final int type = imp.getType();
+        return type != ImagePlus.GRAY32 && type != ImagePlus.GRAY16
+                && type != ImagePlus.GRAY8;
+    }
+
+    private static <S extends RealType<S>> Img<FloatType> convertOnRead(
+            final Img<S> img) {
+        final RandomAccessibleInterval<FloatType> converted =
+                Converters.convert((RandomAccessibleInterval<S>) img,
+                        new RealFloatConverter<S>(), new FloatType());
+        return new ImgView<FloatType>(converted,
+                new ArrayImgFactory<FloatType>());
+    }
 }
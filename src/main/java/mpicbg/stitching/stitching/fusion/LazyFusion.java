@@ -0,0 +1,347 @@
+package mpicbg.stitching.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.InvertibleBoundable;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A fused image that is only computed where it is accessed. The output is
+ * divided into blocks, a block is fused (using the region decomposition and
+ * the {@link PixelFusion} of the regular fusion) the first time one of its
+ * pixels is read and then kept in a bounded LRU cache. Whenever a block has
+ * to be fused on access, its neighbours are fused in the background, and
+ * {@link #prefetch(Interval)} fuses any interval in the background ahead of
+ * time. Only a few blocks are queued for the background at once, further
+ * prefetches are skipped, and a queued block that is dropped from the cache
+ * before it was fused is not fused anymore.
+ * <p>
+ * Call {@link #close()} to stop the background threads once the image is not
+ * needed anymore.
+ * </p>
+ */
+public class LazyFusion<T extends RealType<T> & NativeType<T>> extends
+        AbstractInterval implements RandomAccessibleInterval<T> {
+
+    private final T type;
+    private final Fusion.BlockFuser<T> fuser;
+    private final int[] blockSize;
+    private final long[] gridSize;
+    private final ForkJoinPool pool;
+
+    // least recently used blocks are dropped first
+    private final Map<Long, FutureTask<Img<T>>> cache;
+
+    // number of blocks queued for the background fusion
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int maxQueued;
+
+    /**
+     * @param type
+     *            - the type of the fused image
+     * @param input
+     *            - the input images
+     * @param models
+     *            - the transformation of each image
+     * @param offset
+     *            - the offset of the output
+     * @param dimensions
+     *            - the size of the output
+     * @param fusion
+     *            - the pixel fusion
+     * @param blockSize
+     *            - the size of the blocks that are fused at once
+     * @param cacheSize
+     *            - the maximal number of blocks kept in memory
+     */
+    public LazyFusion(
+            final T type,
+            final ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
+            final ArrayList<InvertibleBoundable> models,
+            final double[] offset, final long[] dimensions,
+            final PixelFusion fusion, final int[] blockSize,
+            final int cacheSize) {
+        super(dimensions);
+
+        this.type = type.createVariable();
+        this.blockSize = blockSize.clone();
+        this.fuser = new Fusion.BlockFuser<T>(input, models, offset, fusion,
+                blockSize);
+        this.pool = Fusion.createFusionPool();
+        this.maxQueued = Math.min(cacheSize, 2 * pool.getParallelism());
+
+        gridSize = new long[n];
+        for (int d = 0; d < n; ++d) {
+            gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+        }
+
+        cache = new LinkedHashMap<Long, FutureTask<Img<T>>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Long, FutureTask<Img<T>>> eldest) {
+                if (size() <= cacheSize) {
+                    return false;
+                }
+                // nobody needs the block anymore, do not fuse it if it is
+                // still queued
+                eldest.getValue().cancel(false);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the fused block at the given position of the block grid, fused
+     *         now if it is neither cached nor being fused in the background.
+     */
+    public Img<T> getBlock(final long[] gridPosition) {
+        while (true) {
+            final FutureTask<Img<T>> task;
+            final boolean fuseNow;
+
+            synchronized (cache) {
+                final Long key = key(gridPosition);
+                final FutureTask<Img<T>> cached = cache.get(key);
+
+                if (cached == null || cached.isCancelled()) {
+                    task = createTask(gridPosition);
+                    cache.put(key, task);
+                    fuseNow = true;
+                } else {
+                    task = cached;
+                    fuseNow = false;
+                }
+            }
+
+            // fuses the block unless it has been started in the background
+            // already, then it waits for it
+            task.run();
+
+            if (fuseNow) {
+                prefetchNeighbours(gridPosition);
+            }
+
+            try {
+                return task.get();
+            } catch (final CancellationException e) {
+                // dropped from the cache by other blocks before it was
+                // fused, fuse it again
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Fuses all blocks intersecting the interval in the background.
+     */
+    public void prefetch(final Interval interval) {
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+
+        for (int d = 0; d < n; ++d) {
+            min[d] = Math.max(0, interval.min(d) / blockSize[d]);
+            max[d] = Math.min(gridSize[d] - 1, interval.max(d) / blockSize[d]);
+            if (min[d] > max[d]) {
+                return;
+            }
+        }
+
+        final long[] gridPosition = min.clone();
+
+        while (true) {
+            prefetch(gridPosition);
+
+            int d = 0;
+            while (d < n && gridPosition[d] == max[d]) {
+                gridPosition[d] = min[d];
+                ++d;
+            }
+            if (d == n) {
+                return;
+            }
+            ++gridPosition[d];
+        }
+    }
+
+    /**
+     * Stops the background fusion and releases all cached blocks.
+     */
+    public void close() {
+        pool.shutdownNow();
+
+        synchronized (cache) {
+            cache.clear();
+        }
+
+        fuser.release();
+    }
+
+    @Override
+    public RandomAccess<T> randomAccess() {
+        return new LazyRandomAccess();
+    }
+
+    @Override
+    public RandomAccess<T> randomAccess(final Interval interval) {
+        return randomAccess();
+    }
+
+    private void prefetchNeighbours(final long[] gridPosition) {
+        final long[] neighbour = gridPosition.clone();
+
+        for (int d = 0; d < n; ++d) {
+            for (int step = -1; step <= 1; step += 2) {
+                neighbour[d] = gridPosition[d] + step;
+                if (neighbour[d] >= 0 && neighbour[d] < gridSize[d]) {
+                    prefetch(neighbour);
+                }
+            }
+            neighbour[d] = gridPosition[d];
+        }
+    }
+
+    private void prefetch(final long[] gridPosition) {
+        final FutureTask<Img<T>> task;
+
+        synchronized (cache) {
+            final Long key = key(gridPosition);
+            // if the queue is full, the block is fused on access instead
+            if (cache.containsKey(key) || queued.get() >= maxQueued) {
+                return;
+            }
+            task = createTask(gridPosition);
+            cache.put(key, task);
+            queued.incrementAndGet();
+        }
+
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        queued.decrementAndGet();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // closed, the task will be run on access
+            queued.decrementAndGet();
+        }
+    }
+
+    private FutureTask<Img<T>> createTask(final long[] gridPosition) {
+        final long[] min = new long[n];
+        final long[] blockDim = new long[n];
+
+        for (int d = 0; d < n; ++d) {
+            min[d] = gridPosition[d] * blockSize[d];
+            blockDim[d] = Math.min(blockSize[d], dimension(d) - min[d]);
+        }
+
+        return new FutureTask<Img<T>>(new Callable<Img<T>>() {
+            @Override
+            public Img<T> call() {
+                final Img<T> block =
+                        new ArrayImgFactory<T>().create(blockDim,
+                                type.createVariable());
+                fuser.fuse(Views.translate(block, min));
+                return block;
+            }
+        });
+    }
+
+    private Long key(final long[] gridPosition) {
+        long key = 0;
+        for (int d = n - 1; d >= 0; --d) {
+            key = key * gridSize[d] + gridPosition[d];
+        }
+        return key;
+    }
+
+    /**
+     * Reads the pixels from the blocks, remembering the last block so
+     * neighbouring pixels do not need a cache lookup. Pixels outside of the
+     * image are 0.
+     */
+    private class LazyRandomAccess extends Point implements RandomAccess<T> {
+        private final long[] gridPosition = new long[n];
+        private final long[] blockMin = new long[n];
+        private final T outside = type.createVariable();
+        private long lastKey = -1;
+        private RandomAccess<T> blockAccess = null;
+
+        public LazyRandomAccess() {
+            super(LazyFusion.this.n);
+        }
+
+        public LazyRandomAccess(final LazyRandomAccess randomAccess) {
+            super(randomAccess);
+        }
+
+        @Override
+        public T get() {
+            long key = 0;
+            for (int d = n - 1; d >= 0; --d) {
+                if (position[d] < 0 || position[d] > max[d]) {
+                    outside.setZero();
+                    return outside;
+                }
+                gridPosition[d] = position[d] / blockSize[d];
+                key = key * gridSize[d] + gridPosition[d];
+            }
+
+            if (key != lastKey) {
+                blockAccess = getBlock(gridPosition).randomAccess();
+                lastKey = key;
+                for (int d = 0; d < n; ++d) {
+                    blockMin[d] = gridPosition[d] * blockSize[d];
+                }
+            }
+
+            for (int d = 0; d < n; ++d) {
+                blockAccess.setPosition(position[d] - blockMin[d], d);
+            }
+
+            return blockAccess.get();
+        }
+
+        @Override
+        public LazyRandomAccess copy() {
+            return new LazyRandomAccess(this);
+        }
+
+        @Override
+        public LazyRandomAccess copyRandomAccess() {
+            return copy();
+        }
+    }
+}
@@ -1,43 +1,158 @@
 package mpicbg.stitching.stitching.fusion;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
+/**
+ * Median of all values of a pixel. The values are kept in a primitive array
+ * that only grows if more images overlap than expected, and the median is
+ * found by sorting small sets in place and by selection otherwise, so no
+ * objects are created per pixel.
+ */
 public class MedianPixelFusion implements PixelFusion {
-    final ArrayList<Double> list;
+    // up to this many values insertion sort is faster than selection
+    private static final int SORT_THRESHOLD = 16;
+
+    double[] values;
+    int count;
 
     public MedianPixelFusion() {
-        list = new ArrayList<Double>();
+        this(8);
+    }
+
+    /**
+     * @param numImages
+     *            - the number of input images, i.e. the maximal number of
+     *            values per pixel
+     */
+    public MedianPixelFusion(final int numImages) {
+        values = new double[Math.max(1, numImages)];
         clear();
     }
 
     @Override
     public void clear() {
-        list.clear();
+        count = 0;
     }
 
     @Override
     public void addValue(final double value, final int imageId,
             final double[] localPosition) {
-        list.add(value);
+        add(value);
+    }
+
+    protected void add(final double value) {
+        if (count == values.length) {
+            final double[] tmp = new double[values.length * 2];
+            System.arraycopy(values, 0, tmp, 0, count);
+            values = tmp;
+        }
+        values[count++] = value;
     }
 
     @Override
     public double getValue() {
-        if (list.size() == 0) {
+        if (count == 0) {
             return 0;
         }
-        Collections.sort(list);
-        final int size = list.size();
 
-        if (size % 2 == 1) {
-            return list.get(size / 2);
+        final int half = count / 2;
+
+        if (count <= SORT_THRESHOLD) {
+            sort(values, count);
+
+            if (count % 2 == 1) {
+                return values[half];
+            }
+            return (values[half - 1] + values[half]) / 2.0;
+        }
+
+        final double upper = select(values, count, half);
+
+        if (count % 2 == 1) {
+            return upper;
+        }
+
+        // after the selection all values left of half are smaller or equal
+        double lower = values[0];
+        for (int i = 1; i < half; ++i) {
+            if (values[i] > lower) {
+                lower = values[i];
+            }
         }
-        return (list.get(size / 2 - 1) + list.get(size / 2)) / 2.0f;
+
+        return (lower + upper) / 2.0;
     }
 
     @Override
     public PixelFusion copy() {
-        return new MedianPixelFusion();
+        return new MedianPixelFusion(values.length);
+    }
+
+    /**
+     * Insertion sort of the first n values.
+     */
+    private static void sort(final double[] a, final int n) {
+        for (int i = 1; i < n; ++i) {
+            final double v = a[i];
+            int j = i - 1;
+            while (j >= 0 && a[j] > v) {
+                a[j + 1] = a[j];
+                --j;
+            }
+            a[j + 1] = v;
+        }
+    }
+
+    /**
+     * Quickselect on the first n values, afterwards a[k] holds the k-th
+     * smallest value, all values before it are smaller or equal and all values
+     * after it are larger or equal.
+     */
+    private static double select(final double[] a, final int n, final int k) {
+        int left = 0;
+        int right = n - 1;
+
+        while (right > left) {
+            // median of three as pivot
+            final int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) {
+                swap(a, left, mid);
+            }
+            if (a[right] < a[left]) {
+                swap(a, left, right);
+            }
+            if (a[right] < a[mid]) {
+                swap(a, mid, right);
+            }
+            final double pivot = a[mid];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    ++i;
+                }
+                while (a[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+
+        return a[k];
+    }
+
+    private static void swap(final double[] a, final int i, final int j) {
+        final double tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
     }
 }
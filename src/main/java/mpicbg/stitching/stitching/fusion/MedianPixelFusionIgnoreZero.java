@@ -5,16 +5,25 @@ public class MedianPixelFusionIgnoreZero extends MedianPixelFusion {
         super();
     }
 
+    /**
+     * @param numImages
+     *            - the number of input images, i.e. the maximal number of
+     *            values per pixel
+     */
+    public MedianPixelFusionIgnoreZero(final int numImages) {
+        super(numImages);
+    }
+
     @Override
     public void addValue(final double value, final int imageId,
             final double[] localPosition) {
         if (value != 0.0) {
-            list.add(value);
+            add(value);
         }
     }
 
     @Override
     public PixelFusion copy() {
-        return new MedianPixelFusionIgnoreZero();
+        return new MedianPixelFusionIgnoreZero(values.length);
     }
 }
@@ -22,7 +22,6 @@ import net.imglib2.RealRandomAccessible;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.interpolation.InterpolatorFactory;
@@ -87,7 +86,7 @@ public class OverlayFusion {
             for (int c = 1; c <= imp.getNChannels(); ++c) {
                 final Img<T> out = f.create(size, targetType);
                 final Img<FloatType> in =
-                        ImageJFunctions.convertFloat(Hyperstack_rearranger
+                        ImageInterpolation.wrapFloat(Hyperstack_rearranger
                                 .getImageChunk(imp, c, t));
 
                 fuseChannel(out, Views.interpolate(Views.extendZero(in),
@@ -164,7 +163,7 @@ public class OverlayFusion {
             for (int c = 1; c <= imp.getNChannels(); ++c) {
                 final Img<T> out = f.create(size, targetType);
                 final Img<FloatType> in =
-                        ImageJFunctions.convertFloat(Hyperstack_rearranger
+                        ImageInterpolation.wrapFloat(Hyperstack_rearranger
                                 .getImageChunk(imp, c, timepoint));
 
                 fuseChannel(out,
@@ -0,0 +1,61 @@
+package mpicbg.stitching.stitching.fusion;
+
+/**
+ * Fusion for the fusion type {@code INTENSITY_RANDOM_TILE}: every region of
+ * the decomposition shows one of the images that cover it, chosen at random
+ * but deterministically from the region, so blocks and slices fused
+ * separately agree. The fusion engine copies the chosen image directly, an
+ * overlap costs the same as a region covered by a single image.
+ * <p>
+ * Used as a plain {@link PixelFusion}, where the region is unknown, it
+ * behaves like {@link OverlapFusion}.
+ * </p>
+ */
+public class RandomTileFusion extends OverlapFusion {
+
+    private final long seed;
+
+    public RandomTileFusion() {
+        this(0);
+    }
+
+    /**
+     * @param seed
+     *            - a different seed chooses different tiles
+     */
+    public RandomTileFusion(final long seed) {
+        super();
+        this.seed = seed;
+    }
+
+    /**
+     * @return the index (into {@link ClassifiedRegion#classArray()}) of the
+     *         image shown in the region
+     */
+    public int selectTile(final ClassifiedRegion region) {
+        final int[] classes = region.classArray();
+
+        long h = seed;
+        for (int d = 0; d < region.size(); ++d) {
+            h = h * 31 + region.get(d).min();
+            h = h * 31 + region.get(d).max();
+        }
+        for (final int c : classes) {
+            h = h * 31 + c;
+        }
+
+        // mix the bits, neighbouring regions differ only slightly
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return (int) ((h >>> 1) % classes.length);
+    }
+
+    @Override
+    public PixelFusion copy() {
+        return new RandomTileFusion(seed);
+    }
+}
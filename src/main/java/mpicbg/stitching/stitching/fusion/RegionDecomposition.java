@@ -0,0 +1,261 @@
+/**
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * An execption is the FFT implementation of Dave Hale which we use as a library,
+ * wich is released under the terms of the Common Public License - v1.0, which is
+ * available at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * @author Mark Hiner, Stephan Preibisch
+ */
+
+package mpicbg.stitching.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Decomposes a set of possibly overlapping {@link ClassifiedRegion}s (usually
+ * one per input tile) into a set of non-overlapping regions. Each resulting
+ * region is classified with all input regions that cover it.
+ * <p>
+ * Placed regions are kept in a {@link ClassifiedRegionIndex}, so finding an
+ * overlap for the next region only looks at its spatial neighbours. For
+ * tile-like layouts this makes the decomposition scale roughly linearly with
+ * the number of tiles.
+ * </p>
+ */
+public class RegionDecomposition {
+
+    /**
+     * Computes the non-overlapping decomposition of the given regions. The
+     * input regions are not modified.
+     *
+     * @param regions
+     *            - the input regions, all of the same dimensionality
+     * @return a list of non-overlapping regions covering exactly the union of
+     *         the input regions
+     */
+    public static List<ClassifiedRegion> decompose(
+            final List<ClassifiedRegion> regions) {
+        if (regions.isEmpty()) {
+            return new ArrayList<ClassifiedRegion>();
+        }
+
+        final Stack<ClassifiedRegion> rawTiles = new Stack<ClassifiedRegion>();
+        for (final ClassifiedRegion region : regions) {
+            rawTiles.push(new ClassifiedRegion(region));
+        }
+
+        // Index of placed tiles. Goal is to move all of the known positions
+        // to this index, creating new regions as needed such that there is no
+        // overlap between regions. Then use its contents to drive iteration
+        // and fusion.
+        final ClassifiedRegionIndex placedTiles =
+                new ClassifiedRegionIndex(cellSize(regions));
+
+        // Process each position. We need to look for an intersecting placed
+        // region and if we find one, create a new set of regions, add them
+        // to the appropriate sets, and continue
+        while (!rawTiles.isEmpty()) {
+            // Get the next tile to process
+            final ClassifiedRegion queryTile = rawTiles.pop();
+            final ClassifiedRegion placedTile =
+                    placedTiles.findIntersecting(queryTile);
+
+            if (placedTile != null) {
+                // The first time we find an overlap between tiles, we split
+                // the two tiles into tile components and place them in the
+                // appropriate lists. The placed tile and the query tile were
+                // broken down and are discarded.
+                placedTiles.remove(placedTile);
+                splitOverlappingRegions(placedTiles, rawTiles, queryTile,
+                        placedTile);
+            } else {
+                // No intersections found, so just place the tile and continue.
+                placedTiles.add(queryTile);
+            }
+        }
+
+        return placedTiles.regions();
+    }
+
+    /**
+     * Uses the average extent of the input regions as cell size of the
+     * spatial index.
+     */
+    private static int[] cellSize(final List<ClassifiedRegion> regions) {
+        final int numDimensions = regions.get(0).size();
+        final int[] cellSize = new int[numDimensions];
+
+        for (int d = 0; d < numDimensions; d++) {
+            long sum = 0;
+            for (final ClassifiedRegion region : regions) {
+                sum += (long) region.get(d).max() - region.get(d).min() + 1;
+            }
+            cellSize[d] = (int) Math.max(1, sum / regions.size());
+        }
+
+        return cellSize;
+    }
+
+    /**
+     * Takes two overlapping regions and deconstructs them into a set of
+     * non-overlapping regions. Each resulting region gains the
+     * classification(s) of its parent(s). Parents are differentiated by "query"
+     * and "placed" - where "placed" is assumed to come from the
+     * {@code placedTiles} index, and thus will not overlap with any other tile
+     * in that index. The "query" tile is what we are currently investigating
+     * for overlap, so any children of the query tile must be added back to the
+     * set of tiles that will be used for further overlap checks.
+     */
+    private static void splitOverlappingRegions(
+            final ClassifiedRegionIndex placedTiles,
+            final Stack<ClassifiedRegion> rawTiles,
+            final ClassifiedRegion queryTile, final ClassifiedRegion placedTile) {
+        // Tiles are different but overlapping. So we need to identify the start
+        // and end points of
+        // all potential sub tiles, for each dimension.
+        final List<Interval>[] allIntervals = new List[queryTile.size()];
+        for (int i = 0; i < allIntervals.length; i++) {
+            final List<Interval> intervals = new ArrayList<Interval>();
+            final List<Integer> points = new ArrayList<Integer>();
+            points.add(queryTile.get(i).min());
+            points.add(queryTile.get(i).max());
+            points.add(placedTile.get(i).min());
+            points.add(placedTile.get(i).max());
+            // Which tiles the points belong to doesn't matter. We just need to
+            // make intervals of the adjacent points
+            Collections.sort(points);
+
+            if (points.get(0).equals(points.get(1))) {
+                // First two points are equal
+                if (points.get(2).equals(points.get(3))) {
+                    // Last two points are equal. Intervals overlap exactly
+                    intervals.add(new Interval(points.get(0), points.get(2)));
+                } else if (points.get(1).equals(points.get(2))) {
+                    // First three points are equal, but last one is different.
+                    // Single point shares edge
+                    intervals.add(new Interval(points.get(0)));
+                    intervals
+                            .add(new Interval(points.get(0) + 1, points.get(3)));
+                } else {
+                    // Overlap at first point, other two are unique (partial
+                    // overlap with shared edge)
+                    intervals.add(new Interval(points.get(0), points.get(2)));
+                    intervals
+                            .add(new Interval(points.get(2) + 1, points.get(3)));
+                }
+            } else if (points.get(1).equals(points.get(2))) {
+                if (points.get(2).equals(points.get(3))) {
+                    // Last three points are equal, first is different. Single
+                    // point shares edge
+                    intervals.add(new Interval(points.get(3)));
+                    intervals
+                            .add(new Interval(points.get(0), points.get(3) - 1));
+                } else {
+                    // Mid 2 points are equal. Two distinct tiles share an edge.
+                    intervals
+                            .add(new Interval(points.get(0), points.get(1) - 1));
+                    intervals.add(new Interval(points.get(1)));
+                    intervals
+                            .add(new Interval(points.get(1) + 1, points.get(3)));
+                }
+            } else if (points.get(2).equals(points.get(3))) {
+                // Last 2 points are equal, other two are unique (partial
+                // overlap with shared edge)
+                intervals.add(new Interval(points.get(0), points.get(1) - 1));
+                intervals.add(new Interval(points.get(1), points.get(3)));
+            } else {
+                // Overlap, zero shared edges
+                intervals.add(new Interval(points.get(0), points.get(1) - 1));
+                intervals.add(new Interval(points.get(1), points.get(2)));
+                intervals.add(new Interval(points.get(2) + 1, points.get(3)));
+            }
+
+            allIntervals[i] = intervals;
+        }
+
+        // Now that we know our potential intervals, we need to enumerate a list
+        // of all regions constructable from those intervals
+        final int[] pos = new int[allIntervals.length];
+
+        // Build and place all regions
+        buildAllRegions(allIntervals, pos, 0, queryTile, placedTile,
+                placedTiles, rawTiles);
+    }
+
+    /**
+     * Recursive method to construct all possible {@link ClassifiedRegion}
+     * combinations from an arbitrary number of {@link Interval} lists. One list
+     * is required for each dimension of the final regions. Regions that only
+     * belong to the placed tile go back into the {@code placedTiles} index,
+     * all others are pushed onto {@code rawTiles} for further overlap checks.
+     */
+    private static void buildAllRegions(final List<Interval>[] allIntervals,
+            final int[] ivalIndices, final int depth,
+            final ClassifiedRegion queryTile,
+            final ClassifiedRegion placedTile,
+            final ClassifiedRegionIndex placedTiles,
+            final Stack<ClassifiedRegion> rawTiles) {
+        if (depth != ivalIndices.length) {
+            for (int i = 0; i < allIntervals[depth].size(); i++) {
+                buildAllRegions(allIntervals, ivalIndices, depth + 1,
+                        queryTile, placedTile, placedTiles, rawTiles);
+                // increment the index at this position in the intervals array
+                ivalIndices[depth]++;
+            }
+            ivalIndices[depth] = 0;
+            return;
+        }
+
+        // Build a new region using the current specified indices
+        final ClassifiedRegion region =
+                new ClassifiedRegion(allIntervals.length);
+
+        boolean inQuery = true;
+        boolean inPlaced = true;
+        boolean validIval = true;
+        for (int i = 0; validIval && i < allIntervals.length; i++) {
+            final Interval newIval =
+                    new Interval(allIntervals[i].get(ivalIndices[i]));
+            final Interval queryIval = queryTile.get(i);
+            final Interval placedIval = placedTile.get(i);
+            region.set(newIval, i);
+            // Each sub-region must be fully contained in at least one parent,
+            // otherwise it is invalid.
+            inQuery =
+                    inQuery && queryIval.contains(newIval.min()) == 0
+                            && queryIval.contains(newIval.max()) == 0;
+            inPlaced =
+                    inPlaced && placedIval.contains(newIval.min()) == 0
+                            && placedIval.contains(newIval.max()) == 0;
+            validIval = inQuery || inPlaced;
+        }
+
+        if (validIval) {
+            if (inQuery) {
+                region.addAllClasses(queryTile);
+                rawTiles.push(region);
+            }
+            if (inPlaced) {
+                region.addAllClasses(placedTile);
+                if (!inQuery) {
+                    placedTiles.add(region);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package mpicbg.stitching.utils;
+
+/**
+ * Finds the highest local maxima of an n-dimensional image stored as flat
+ * float array (x fastest). A pixel is a local maximum if it is larger than
+ * zero and not smaller than any of its 3^n - 1 neighbours, pixels outside of
+ * the image are ignored. Of a plateau of equal maxima only the pixel that
+ * comes last in raster order is reported.
+ * <p>
+ * Nothing is allocated per pixel, the best maxima are kept in a min-heap of
+ * primitive arrays.
+ * </p>
+ */
+public class LocalMaxima {
+
+    /**
+     * @param data
+     *            - the pixels, x fastest
+     * @param size
+     *            - the size of the image
+     * @param numPeaks
+     *            - how many maxima to return at most
+     * @return the indices of the highest local maxima in data, highest first
+     */
+    public static int[] find(final float[] data, final int[] size,
+            final int numPeaks) {
+        if (numPeaks < 1) {
+            throw new IllegalArgumentException(
+                    "Number of peaks must be at least 1");
+        }
+
+        final int n = size.length;
+        final int[] stride = new int[n];
+        int numPixels = 1;
+        for (int d = 0; d < n; ++d) {
+            stride[d] = numPixels;
+            numPixels *= size[d];
+        }
+
+        // the offsets of all neighbours and their steps per dimension
+        final int numNeighbours = (int) Math.pow(3, n) - 1;
+        final int[] offsets = new int[numNeighbours];
+        final int[][] steps = new int[numNeighbours][n];
+
+        for (int i = 0, j = 0; i <= numNeighbours; ++i) {
+            if (i == numNeighbours / 2) {
+                // the pixel itself
+                continue;
+            }
+
+            int rest = i;
+            for (int d = 0; d < n; ++d) {
+                steps[j][d] = rest % 3 - 1;
+                rest /= 3;
+                offsets[j] += steps[j][d] * stride[d];
+            }
+            ++j;
+        }
+
+        final float[] heapValues = new float[numPeaks];
+        final int[] heapIndices = new int[numPeaks];
+        int heapSize = 0;
+
+        final int[] position = new int[n];
+
+        for (int i = 0; i < numPixels; ++i) {
+            final float value = data[i];
+
+            if (value > 0
+                    && (heapSize < numPeaks || value > heapValues[0])
+                    && isMaximum(data, i, value, position, size, offsets,
+                            steps)) {
+                if (heapSize < numPeaks) {
+                    heapValues[heapSize] = value;
+                    heapIndices[heapSize] = i;
+                    siftUp(heapValues, heapIndices, heapSize++);
+                } else {
+                    heapValues[0] = value;
+                    heapIndices[0] = i;
+                    siftDown(heapValues, heapIndices, heapSize);
+                }
+            }
+
+            // next position in raster order
+            for (int d = 0; d < n; ++d) {
+                if (++position[d] < size[d]) {
+                    break;
+                }
+                position[d] = 0;
+            }
+        }
+
+        // empty the heap, smallest first
+        final int[] peaks = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; --i) {
+            peaks[i] = heapIndices[0];
+            heapValues[0] = heapValues[i];
+            heapIndices[0] = heapIndices[i];
+            siftDown(heapValues, heapIndices, i);
+        }
+
+        return peaks;
+    }
+
+    private static boolean isMaximum(final float[] data, final int index,
+            final float value, final int[] position, final int[] size,
+            final int[] offsets, final int[][] steps) {
+        boolean border = false;
+        for (int d = 0; d < size.length; ++d) {
+            border |= position[d] == 0 || position[d] == size[d] - 1;
+        }
+
+        for (int j = 0; j < offsets.length; ++j) {
+            if (border && !inside(position, steps[j], size)) {
+                continue;
+            }
+
+            final float neighbour = data[index + offsets[j]];
+
+            // ties go to the pixel that comes last
+            if (neighbour > value || neighbour == value && offsets[j] > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean inside(final int[] position, final int[] step,
+            final int[] size) {
+        for (int d = 0; d < size.length; ++d) {
+            final int p = position[d] + step[d];
+            if (p < 0 || p >= size[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void siftUp(final float[] values, final int[] indices,
+            int i) {
+        while (i > 0) {
+            final int parent = (i - 1) / 2;
+            if (values[parent] <= values[i]) {
+                return;
+            }
+            swap(values, indices, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(final float[] values, final int[] indices,
+            final int heapSize) {
+        int i = 0;
+        while (true) {
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            int smallest = i;
+
+            if (left < heapSize && values[left] < values[smallest]) {
+                smallest = left;
+            }
+            if (right < heapSize && values[right] < values[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+
+            swap(values, indices, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(final float[] values, final int[] indices,
+            final int i, final int j) {
+        final float value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+
+        final int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+    }
+}
@@ -0,0 +1,17 @@
+package mpicbg.stitching.utils;
+
+/**
+ * Utility class to deal with the memory of the JVM.
+ */
+public final class Memory {
+
+    /**
+     * @return the number of bytes of the heap that can still be allocated,
+     *         i.e. the maximum heap minus what is currently used
+     */
+    public static long availableHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory()
+                - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
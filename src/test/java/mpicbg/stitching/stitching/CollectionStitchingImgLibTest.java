@@ -0,0 +1,183 @@
+package mpicbg.stitching.stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.models.TranslationModel2D;
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import other.ops.AbstractOpTest;
+
+/**
+ * Registers the pairs of a small grid of tiles cut out of a synthetic scene.
+ */
+public class CollectionStitchingImgLibTest extends AbstractOpTest {
+
+    @Test
+    public void testOrderPairs() {
+        final ImagePlusTimePoint[] tiles = new ImagePlusTimePoint[4];
+        for (int i = 0; i < tiles.length; ++i) {
+            tiles[i] = tile(i, 0, 0, 0, 0, 10, 10);
+        }
+
+        final ComparePair p23 = new ComparePair(tiles[2], tiles[3]);
+        final ComparePair p10 = new ComparePair(tiles[1], tiles[0]);
+        final ComparePair p02 = new ComparePair(tiles[0], tiles[2]);
+        final ComparePair p31 = new ComparePair(tiles[3], tiles[1]);
+
+        final List<ComparePair> ordered =
+                CollectionStitchingImgLib.orderPairs(Arrays.asList(p23, p10,
+                        p02, p31));
+
+        assertSame(p10, ordered.get(0));
+        assertSame(p02, ordered.get(1));
+        assertSame(p31, ordered.get(2));
+        assertSame(p23, ordered.get(3));
+    }
+
+    @Test
+    public void testNumThreads() {
+        final List<ComparePair> pairs = new ArrayList<ComparePair>();
+        pairs.add(new ComparePair(tile(0, 0, 0, 0, 0, 100, 100), tile(1, 0,
+                0, 0, 0, 100, 100)));
+        pairs.add(new ComparePair(tile(2, 0, 0, 0, 0, 10, 10), tile(3, 0, 0,
+                0, 0, 10, 10)));
+
+        // the largest pair has 20000 pixels, i.e. needs 320000 bytes
+        final long bytesPerPair = 320000;
+
+        assertEquals(3, CollectionStitchingImgLib.numThreads(pairs,
+                3 * bytesPerPair + 1, 8));
+        assertEquals(2, CollectionStitchingImgLib.numThreads(pairs,
+                3 * bytesPerPair, 2));
+        assertEquals(1, CollectionStitchingImgLib.numThreads(pairs,
+                bytesPerPair - 1, 8));
+        assertEquals(1,
+                CollectionStitchingImgLib.numThreads(pairs, -bytesPerPair, 8));
+    }
+
+    /**
+     * A 2x2 grid with a layout that is off by a few pixels, plus a tile that
+     * the layout puts far away and one without a layout, which fails to
+     * register. Their pairs are ignored, all others are registered.
+     */
+    @Test
+    public void testRegisterGrid() {
+        final ImagePlusTimePoint[] tiles =
+                new ImagePlusTimePoint[] { tile(0, 0, 0, 0, 0, 60, 50),
+                        tile(1, 40, 0, 42, -2, 60, 50),
+                        tile(2, 0, 35, 2, 37, 60, 50),
+                        tile(3, 40, 35, 38, 33, 60, 50),
+                        tile(4, 100, 60, 300, 300, 60, 50) };
+        final ImagePlusTimePoint broken =
+                new ImagePlusTimePoint(tiles[1].getImagePlus(), 5, 1,
+                        new TranslationModel2D(), null);
+
+        final Vector<ComparePair> pairs = new Vector<ComparePair>();
+        pairs.add(new ComparePair(tiles[2], tiles[3]));
+        pairs.add(new ComparePair(tiles[0], tiles[4]));
+        pairs.add(new ComparePair(tiles[0], tiles[1]));
+        pairs.add(new ComparePair(tiles[1], tiles[3]));
+        pairs.add(new ComparePair(tiles[0], tiles[2]));
+        pairs.add(new ComparePair(tiles[0], broken));
+
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+        params.overlapRoi = true;
+        params.overlapMargin = 5;
+        params.cpuMemChoice = 1;
+
+        assertTrue(CollectionStitchingImgLib.registerPairs(pairs, params, ops));
+
+        for (final ComparePair ignored : new ComparePair[] { pairs.get(1),
+                pairs.get(5) }) {
+            assertFalse(ignored.getIsValidOverlap());
+            assertEquals(0, ignored.getCrossCorrelation(), 0);
+        }
+
+        assertShift(pairs.get(0), 40, 0);
+        assertShift(pairs.get(2), 40, 0);
+        assertShift(pairs.get(3), 0, 35);
+        assertShift(pairs.get(4), 0, 35);
+    }
+
+    /**
+     * Only the registered channel and timepoint of a hyperstack are used.
+     */
+    @Test
+    public void testRegisteredImage() {
+        final ImageStack stack = new ImageStack(4, 3);
+        for (int t = 1; t <= 2; ++t) {
+            for (int c = 1; c <= 2; ++c) {
+                final FloatProcessor ip = new FloatProcessor(4, 3);
+                ip.setValue(10 * t + c);
+                ip.fill();
+                stack.addSlice(ip);
+            }
+        }
+        final ImagePlus imp = new ImagePlus("hyperstack", stack);
+        imp.setDimensions(2, 1, 2);
+        imp.setOpenAsHyperStack(true);
+
+        assertImage(11, CollectionStitchingImgLib.registeredImage(imp, 1, 1));
+        assertImage(22, CollectionStitchingImgLib.registeredImage(imp, 2, 2));
+        assertImage(21.5f,
+                CollectionStitchingImgLib.registeredImage(imp, 0, 2));
+    }
+
+    private static void assertImage(final float value,
+            final ImgPlus<FloatType> img) {
+        assertEquals(2, img.numDimensions());
+        assertEquals(4, img.dimension(0));
+        assertEquals(3, img.dimension(1));
+        for (final FloatType pixel : img) {
+            assertEquals(value, pixel.get(), 0);
+        }
+    }
+
+    private static void assertShift(final ComparePair pair, final float x,
+            final float y) {
+        assertTrue(pair.getIsValidOverlap());
+        assertArrayEquals(new float[] { x, y }, pair.getRelativeShift(), 0);
+        assertEquals(1, pair.getCrossCorrelation(), 1e-4);
+    }
+
+    /**
+     * @return the tile of the scene at (x, y) that the layout puts at
+     *         (layoutX, layoutY)
+     */
+    private static ImagePlusTimePoint tile(final int index, final int x,
+            final int y, final float layoutX, final float layoutY,
+            final int width, final int height) {
+        final FloatProcessor ip = new FloatProcessor(width, height);
+        for (int j = 0; j < height; ++j) {
+            for (int i = 0; i < width; ++i) {
+                ip.setf(i, j, PairWiseStitchingImgLibTest.scene(x + i, y + j));
+            }
+        }
+        final ImagePlus imp = new ImagePlus("tile " + index, ip);
+
+        final ImageCollectionElement element =
+                new ImageCollectionElement(null, index);
+        element.setImagePlus(imp);
+        element.setOffset(new float[] { layoutX, layoutY });
+        element.setDimensionality(2);
+
+        return new ImagePlusTimePoint(imp, index, 1, new TranslationModel2D(),
+                element);
+    }
+}
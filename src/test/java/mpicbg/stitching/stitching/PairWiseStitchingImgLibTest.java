@@ -0,0 +1,197 @@
+package mpicbg.stitching.stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import other.ops.AbstractOpTest;
+
+/**
+ * Registers tiles cut out of a synthetic scene at known positions.
+ */
+public class PairWiseStitchingImgLibTest extends AbstractOpTest {
+
+    /**
+     * The shift is more than half of the tile, so the peak of the phase
+     * correlation has to be unwrapped towards the larger shift.
+     */
+    @Test
+    public void testPairwiseRecoversShift() {
+        final ImgPlus<FloatType> tile1 = tile(0, 0, 70, 60);
+        final ImgPlus<FloatType> tile2 = tile(45, 12, 70, 60);
+
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+
+        final PairWiseStitchingResult result =
+                PairWiseStitchingImgLib.stitchPairwise(tile1, tile2, 1, 1,
+                        params, ops);
+
+        assertNotNull(result);
+        assertArrayEquals(new long[] { 45, 12 }, result.getOffset());
+        assertEquals(1, result.getCrossCorrelation(), 1e-4);
+    }
+
+    /**
+     * The layout is off by a few pixels, the overlap crop is not a fast FFT
+     * size, so the phase correlation is padded and has to be unwrapped at the
+     * padded size.
+     */
+    @Test
+    public void testOverlapRecoversShift() {
+        final ImgPlus<FloatType> tile1 = tile(0, 0, 70, 60);
+        final ImgPlus<FloatType> tile2 = tile(45, 12, 70, 60);
+
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+        params.overlapMargin = 5;
+
+        final PairWiseStitchingResult result =
+                PairWiseStitchingImgLib.stitchOverlap(tile1, tile2,
+                        element(0, 0, 0, 70, 60),
+                        element(1, 41, 15, 70, 60), params, ops);
+
+        assertNotNull(result);
+        assertArrayEquals(new long[] { 45, 12 }, result.getOffset());
+        assertEquals(1, result.getCrossCorrelation(), 1e-4);
+    }
+
+    /**
+     * Tiles of different size, the shift is not a multiple of the
+     * downsampling, so it has to be refined at full resolution.
+     */
+    @Test
+    public void testCoarseToFineRecoversShift() {
+        final ImgPlus<FloatType> tile1 = tile(0, 0, 80, 64);
+        final ImgPlus<FloatType> tile2 = tile(51, 19, 70, 60);
+
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+        params.registrationDownsampling = 2;
+
+        final PairWiseStitchingResult result =
+                PairWiseStitchingImgLib.stitchCoarseToFine(tile1, tile2,
+                        params, ops);
+
+        assertNotNull(result);
+        assertArrayEquals(new long[] { 51, 19 }, result.getOffset());
+        assertEquals(1, result.getCrossCorrelation(), 1e-4);
+    }
+
+    /**
+     * Peaks of shifts larger than the limit are not found, even if they are
+     * the best ones.
+     */
+    @Test
+    public void testLimitedShift() {
+        final ImgPlus<FloatType> tile1 = tile(0, 0, 64, 64);
+        final ImgPlus<FloatType> tile2 = tile(10, 0, 64, 64);
+
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+
+        final PairWiseStitchingResult unlimited =
+                PairWiseStitchingImgLib.computePhaseCorrelation(tile1, tile2,
+                        null, params, ops);
+        assertArrayEquals(new long[] { 10, 0 }, unlimited.getOffset());
+
+        final PairWiseStitchingResult limited =
+                PairWiseStitchingImgLib.computePhaseCorrelation(tile1, tile2,
+                        new long[] { 3, 3 }, params, ops);
+
+        for (int d = 0; d < 2; ++d) {
+            final long peak = limited.getOffset()[d];
+            final long size = limited.getSize()[d];
+            assertTrue(peak <= 3 || peak >= size - 3);
+        }
+    }
+
+    /**
+     * Constant tiles have no positive local maximum in the phase correlation,
+     * the registration still has to come up with a shift.
+     */
+    @Test
+    public void testConstantTiles() {
+        final StitchingParameters params = new StitchingParameters();
+        params.dimensionality = 2;
+        params.overlapMargin = 5;
+
+        for (final float value : new float[] { 0, 1 }) {
+            final PairWiseStitchingResult result =
+                    PairWiseStitchingImgLib.stitchOverlap(
+                            constant(40, 30, value), constant(40, 30, value),
+                            element(0, 0, 0, 40, 30),
+                            element(1, 25, 0, 40, 30), params, ops);
+
+            assertNotNull(result);
+            assertEquals(2, result.getNumDimensions());
+        }
+    }
+
+    private static ImgPlus<FloatType> constant(final int width,
+            final int height, final float value) {
+        final Img<FloatType> img = ArrayImgs.floats(width, height);
+        for (final FloatType pixel : img) {
+            pixel.set(value);
+        }
+        return new ImgPlus<FloatType>(img, "constant");
+    }
+
+    /**
+     * @return the part of the scene starting at (x, y)
+     */
+    static ImgPlus<FloatType> tile(final int x, final int y,
+            final int width, final int height) {
+        final Img<FloatType> img = ArrayImgs.floats(width, height);
+        final Cursor<FloatType> cursor = img.localizingCursor();
+
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(scene(x + cursor.getIntPosition(0),
+                    y + cursor.getIntPosition(1)));
+        }
+
+        return new ImgPlus<FloatType>(img, "tile");
+    }
+
+    static ImageCollectionElement element(final int index, final float x,
+            final float y, final int width, final int height) {
+        final ImageCollectionElement element =
+                new ImageCollectionElement(null, index);
+        element.setImagePlus(new ImagePlus("tile",
+                new FloatProcessor(width, height)));
+        element.setOffset(new float[] { x, y });
+        element.setDimensionality(2);
+        return element;
+    }
+
+    /**
+     * @return a smooth, non-periodic pattern of blobs
+     */
+    static float scene(final int x, final int y) {
+        float value = 0;
+        int seed = 17;
+
+        for (int i = 0; i < 40; ++i) {
+            seed = 3170425 * seed + 132102;
+            final int bx = (seed >>> 8) % 160;
+            seed = 3170425 * seed + 132102;
+            final int by = (seed >>> 8) % 120;
+
+            final float dx = x - bx, dy = y - by;
+            value += Math.exp(-(dx * dx + dy * dy) / 18);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,171 @@
+package mpicbg.stitching.stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+
+import org.junit.Test;
+
+public class SpectrumCacheTest {
+
+    // 10 x 10 complex floats
+    private static final long SPECTRUM_BYTES = 800;
+
+    @Test
+    public void keyIsTileAndSize() {
+        final SpectrumCache cache = new SpectrumCache(10 * SPECTRUM_BYTES);
+        final Img<ComplexFloatType> spectrum = spectrum();
+
+        cache.put("a", dims(20, 20), spectrum);
+
+        assertSame(spectrum, cache.get("a", dims(20, 20)));
+        assertSame(spectrum, cache.get(new String("a"), dims(20, 20)));
+        assertNull(cache.get("a", dims(20, 21)));
+        assertNull(cache.get("a", dims(20, 20, 1)));
+        assertNull(cache.get("b", dims(20, 20)));
+    }
+
+    @Test
+    public void countsBytes() {
+        final SpectrumCache cache = new SpectrumCache(10 * SPECTRUM_BYTES);
+
+        cache.put("a", dims(20, 20), spectrum());
+        cache.put("b", dims(20, 20), spectrum());
+        assertEquals(2 * SPECTRUM_BYTES, cache.getBytes());
+
+        // replacing a spectrum does not count it twice
+        cache.put("a", dims(20, 20), spectrum());
+        assertEquals(2 * SPECTRUM_BYTES, cache.getBytes());
+
+        cache.clear();
+        assertEquals(0, cache.getBytes());
+        assertNull(cache.get("a", dims(20, 20)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final SpectrumCache cache = new SpectrumCache(2 * SPECTRUM_BYTES);
+
+        cache.put("a", dims(20, 20), spectrum());
+        cache.put("b", dims(20, 20), spectrum());
+
+        // a is now used more recently than b
+        cache.get("a", dims(20, 20));
+        cache.put("c", dims(20, 20), spectrum());
+
+        assertNull(cache.get("b", dims(20, 20)));
+        assertEquals(2 * SPECTRUM_BYTES, cache.getBytes());
+        cache.put("d", dims(20, 20), spectrum());
+
+        assertNull(cache.get("a", dims(20, 20)));
+        assertEquals(2 * SPECTRUM_BYTES, cache.getBytes());
+    }
+
+    @Test
+    public void refusesSpectraLargerThanCache() {
+        final SpectrumCache cache = new SpectrumCache(SPECTRUM_BYTES - 1);
+
+        cache.put("a", dims(20, 20), spectrum());
+
+        assertNull(cache.get("a", dims(20, 20)));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void computesOnceForConcurrentMisses() throws Exception {
+        final SpectrumCache cache = new SpectrumCache(10 * SPECTRUM_BYTES);
+        final AtomicInteger computed = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Img<ComplexFloatType> spectrum = spectrum();
+
+        final Callable<Img<ComplexFloatType>> compute =
+                new Callable<Img<ComplexFloatType>>() {
+                    @Override
+                    public Img<ComplexFloatType> call() throws Exception {
+                        computed.incrementAndGet();
+                        started.countDown();
+                        release.await();
+                        return spectrum;
+                    }
+                };
+
+        final Callable<Img<ComplexFloatType>> get =
+                new Callable<Img<ComplexFloatType>>() {
+                    @Override
+                    public Img<ComplexFloatType> call() {
+                        return cache.get("a", dims(20, 20), compute);
+                    }
+                };
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Img<ComplexFloatType>> first = pool.submit(get);
+            started.await();
+            final Future<Img<ComplexFloatType>> second = pool.submit(get);
+
+            // give the second thread time to find the running computation
+            Thread.sleep(100);
+            release.countDown();
+
+            assertSame(spectrum, first.get(10, TimeUnit.SECONDS));
+            assertSame(spectrum, second.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, computed.get());
+        assertSame(spectrum, cache.get("a", dims(20, 20)));
+        assertSame(spectrum, cache.get("a", dims(20, 20), compute));
+        assertEquals(1, computed.get());
+    }
+
+    @Test
+    public void retriesAfterFailedComputation() {
+        final SpectrumCache cache = new SpectrumCache(10 * SPECTRUM_BYTES);
+        final Img<ComplexFloatType> spectrum = spectrum();
+
+        try {
+            cache.get("a", dims(20, 20),
+                    new Callable<Img<ComplexFloatType>>() {
+                        @Override
+                        public Img<ComplexFloatType> call() {
+                            throw new IllegalStateException("failed");
+                        }
+                    });
+            fail("the exception of the computation was not rethrown");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        assertSame(spectrum, cache.get("a", dims(20, 20),
+                new Callable<Img<ComplexFloatType>>() {
+                    @Override
+                    public Img<ComplexFloatType> call() {
+                        return spectrum;
+                    }
+                }));
+    }
+
+    private static Img<ComplexFloatType> spectrum() {
+        return ArrayImgs.complexFloats(10, 10);
+    }
+
+    private static FinalInterval dims(final long... dimensions) {
+        return new FinalInterval(dimensions);
+    }
+}
@@ -0,0 +1,58 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link BlendingWeights} class.
+ */
+public class BlendingWeightsTest {
+
+    /**
+     * The tabulated weights have to match
+     * {@link BlendingPixelFusion#computeWeight} at integer and subpixel
+     * positions, inside and slightly outside of the images.
+     */
+    @Test
+    public void testMatchesComputeWeight() {
+        final Random rnd = new Random(7);
+
+        for (int run = 0; run < 50; run++) {
+            final int numDimensions = 2 + rnd.nextInt(2);
+            final int numImages = 1 + rnd.nextInt(4);
+            final double percentScaling = rnd.nextDouble();
+            final long[][] dimensions = new long[numImages][numDimensions];
+
+            for (int i = 0; i < numImages; i++) {
+                for (int d = 0; d < numDimensions; d++) {
+                    // repeat sizes now and then, they share their tables
+                    dimensions[i][d] =
+                            i > 0 && rnd.nextBoolean() ? dimensions[0][d]
+                                    : 1 + rnd.nextInt(300);
+                }
+            }
+
+            final double[] border = new double[numDimensions];
+            final BlendingWeights weights =
+                    new BlendingWeights(dimensions, border, percentScaling);
+
+            final double[] location = new double[numDimensions];
+            for (int k = 0; k < 1000; k++) {
+                final int i = rnd.nextInt(numImages);
+                for (int d = 0; d < numDimensions; d++) {
+                    location[d] = rnd.nextInt((int) dimensions[i][d] + 3) - 1;
+                    if (rnd.nextBoolean()) {
+                        location[d] += rnd.nextDouble();
+                    }
+                }
+
+                assertEquals(BlendingPixelFusion.computeWeight(location,
+                        dimensions[i], border, percentScaling), weights
+                        .getWeight(i, location), 1e-6);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Fusion#fuseBlockNoOverlap}.
+ */
+public class FuseBlockNoOverlapTest {
+
+    /**
+     * An output offset of 0.6 puts the image at -0.6, which has to be rounded
+     * down to -1 by the row copy as well as by the cursor fallback.
+     */
+    @Test
+    public void testNegativeSubpixelOffset() {
+        final long[] inDim = new long[] { 5, 3 };
+        final long[] outDim = new long[] { 4, 3 };
+        final double[] offset = new double[] { 0.6, 0 };
+
+        // planar input and output are copied row by row, an array output
+        // uses the cursor
+        final Img<FloatType> rows =
+                fuse(new PlanarImgFactory<FloatType>(), inDim, outDim, offset);
+        final Img<FloatType> pixels =
+                fuse(new ArrayImgFactory<FloatType>(), inDim, outDim, offset);
+
+        assertShifted(rows, -1);
+        assertShifted(pixels, -1);
+    }
+
+    private static Img<FloatType> fuse(
+            final ImgFactory<FloatType> outFactory,
+            final long[] inDim, final long[] outDim, final double[] offset) {
+        final Img<FloatType> img =
+                new PlanarImgFactory<FloatType>().create(inDim,
+                        new FloatType());
+        final Cursor<FloatType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(value(cursor.getIntPosition(0),
+                    cursor.getIntPosition(1)));
+        }
+
+        final ArrayList<ImageInterpolation<FloatType>> input =
+                new ArrayList<ImageInterpolation<FloatType>>();
+        input.add(new ImageInterpolation<FloatType>(img,
+                new NearestNeighborInterpolatorFactory<FloatType>(), false));
+
+        final ArrayList<InvertibleBoundable> models =
+                new ArrayList<InvertibleBoundable>();
+        models.add(new TranslationModel2D());
+
+        final Img<FloatType> out = outFactory.create(outDim, new FloatType());
+        Fusion.fuseBlockNoOverlap(out, input, offset, models, false);
+
+        return out;
+    }
+
+    private static void assertShifted(final Img<FloatType> out,
+            final int shift) {
+        final RandomAccess<FloatType> ra = out.randomAccess();
+
+        for (int y = 0; y < out.dimension(1); ++y) {
+            for (int x = 0; x < out.dimension(0); ++x) {
+                ra.setPosition(new int[] { x, y });
+                assertEquals(value(x - shift, y), ra.get().get(), 0);
+            }
+        }
+    }
+
+    private static float value(final int x, final int y) {
+        return 1 + x + 10 * y;
+    }
+}
@@ -0,0 +1,125 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.math.CommonFunctions;
+import mpicbg.stitching.math.CommonFunctions.FusionType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link Fusion} class.
+ */
+public class FusionTest {
+
+    /**
+     * Fuses a crop that cuts through both of two overlapping tiles, the parts
+     * of the tiles outside of the crop must not be written.
+     */
+    @Test
+    public void testCropThroughTiles() {
+        final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+        final ArrayList<InvertibleBoundable> models =
+                new ArrayList<InvertibleBoundable>();
+
+        images.add(constant(20, 10, 1));
+        images.add(constant(20, 10, 3));
+        models.add(translation(0, 0));
+        models.add(translation(15, 0));
+
+        final ImagePlus crop =
+                Fusion.fuseInterval(new FloatType(), images, models, 2, false,
+                        FusionType.AVERAGE, false, new long[] { 10, 2 },
+                        new long[] { 24, 6 }, 1, 1, new int[] { 1 });
+
+        assertEquals(15, crop.getWidth());
+        assertEquals(5, crop.getHeight());
+
+        final ImageProcessor ip = crop.getProcessor();
+        for (int y = 0; y < 5; ++y) {
+            for (int x = 0; x < 15; ++x) {
+                final float expected = x < 5 ? 1 : x < 10 ? 2 : 3;
+                assertEquals(expected, ip.getf(x, y), 0);
+            }
+        }
+    }
+
+    /**
+     * Each entry of the fusion method dialog has to create its own pixel
+     * fusion, with and without ignoring zero values.
+     */
+    @Test
+    public void testFusionOfEachDialogIndex() {
+        final String[] labels =
+                { "Linear Blending", "Average", "Median", "Max. Intensity",
+                        "Min. Intensity", "Intensity of random input tile",
+                        "Overlay into composite image", "Do not fuse images" };
+        final String[] types =
+                { FusionType.LINEAR_BLENDING, FusionType.AVERAGE,
+                        FusionType.MEDIAN, FusionType.MAX_INTENSITY,
+                        FusionType.MIN_INTENSITY,
+                        FusionType.INTENSITY_RANDOM_TILE, FusionType.OVERLAY,
+                        FusionType.NO_FUSE };
+        final Class<?>[] fusions =
+                { BlendingPixelFusion.class, AveragePixelFusion.class,
+                        MedianPixelFusion.class, MaxPixelFusion.class,
+                        MinPixelFusion.class, RandomTileFusion.class, null,
+                        null };
+        final Class<?>[] fusionsIgnoreZero =
+                { BlendingPixelFusionIgnoreZero.class,
+                        AveragePixelFusionIgnoreZero.class,
+                        MedianPixelFusionIgnoreZero.class,
+                        MaxPixelFusionIgnoreZero.class,
+                        MinPixelFusionIgnoreZero.class,
+                        RandomTileFusion.class, null, null };
+
+        final ArrayList<ImageInterpolation<FloatType>> blockData =
+                new ArrayList<ImageInterpolation<FloatType>>();
+        blockData.add(new ImageInterpolation<FloatType>(ArrayImgs.floats(
+                4, 4), new NLinearInterpolatorFactory<FloatType>(), true));
+
+        assertEquals(labels.length, CommonFunctions.fusionMethodList.length);
+        for (int i = 0; i < labels.length; ++i) {
+            assertEquals(labels[i], CommonFunctions.fusionMethodList[i]);
+            assertFusion(fusions[i],
+                    Fusion.createPixelFusion(types[i], false, 1, blockData));
+            assertFusion(fusionsIgnoreZero[i],
+                    Fusion.createPixelFusion(types[i], true, 1, blockData));
+        }
+    }
+
+    private static void assertFusion(final Class<?> expected,
+            final PixelFusion fusion) {
+        if (expected == null) {
+            assertNull(fusion);
+        } else {
+            assertEquals(expected, fusion.getClass());
+        }
+    }
+
+    private static ImagePlus constant(final int width, final int height,
+            final float value) {
+        final FloatProcessor ip = new FloatProcessor(width, height);
+        ip.setValue(value);
+        ip.fill();
+        return new ImagePlus("tile", ip);
+    }
+
+    private static TranslationModel2D translation(final float x,
+            final float y) {
+        final TranslationModel2D model = new TranslationModel2D();
+        model.set(x, y);
+        return model;
+    }
+}
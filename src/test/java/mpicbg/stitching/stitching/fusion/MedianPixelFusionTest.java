@@ -0,0 +1,68 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link MedianPixelFusion} class.
+ */
+public class MedianPixelFusionTest {
+
+    /**
+     * Compares against the median of a sorted copy, for sets that are sorted
+     * as well as for larger ones that use selection, including duplicates and
+     * more values than announced.
+     */
+    @Test
+    public void testMedian() {
+        final Random rnd = new Random(3);
+        final PixelFusion fusion = new MedianPixelFusion(4);
+
+        for (int run = 0; run < 2000; run++) {
+            final int n = 1 + rnd.nextInt(run % 2 == 0 ? 8 : 60);
+            final double[] values = new double[n];
+
+            fusion.clear();
+            for (int i = 0; i < n; i++) {
+                values[i] = rnd.nextInt(20);
+                fusion.addValue(values[i], i, null);
+            }
+
+            assertEquals(median(values), fusion.getValue(), 0);
+        }
+    }
+
+    @Test
+    public void testIgnoreZero() {
+        final PixelFusion fusion = new MedianPixelFusionIgnoreZero(5);
+
+        assertEquals(0, fusion.getValue(), 0);
+
+        for (final double v : new double[] { 0, 5, 0, 1, 3 }) {
+            fusion.addValue(v, 0, null);
+        }
+        assertEquals(3, fusion.getValue(), 0);
+
+        fusion.addValue(4, 0, null);
+        assertEquals(3.5, fusion.getValue(), 0);
+
+        final PixelFusion copy = fusion.copy();
+        copy.addValue(0, 0, null);
+        assertEquals(0, copy.getValue(), 0);
+    }
+
+    private static double median(final double[] values) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final int half = sorted.length / 2;
+
+        if (sorted.length % 2 == 1) {
+            return sorted[half];
+        }
+        return (sorted[half - 1] + sorted[half]) / 2.0;
+    }
+}
@@ -0,0 +1,43 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RandomTileFusion} class.
+ */
+public class RandomTileFusionTest {
+
+    /**
+     * The same region always shows the same image, different regions show
+     * all of the images.
+     */
+    @Test
+    public void testSelectTile() {
+        final RandomTileFusion fusion = new RandomTileFusion();
+        final int[] counts = new int[3];
+
+        for (int x = 0; x < 300; x++) {
+            final ClassifiedRegion region =
+                    new ClassifiedRegion(new Interval(x * 10, x * 10 + 9),
+                            new Interval(0, 99));
+            region.addClass(4);
+            region.addClass(7);
+            region.addClass(9);
+
+            final int tile = fusion.selectTile(region);
+            assertTrue(tile >= 0 && tile < 3);
+            assertEquals(tile, fusion.selectTile(new ClassifiedRegion(region)));
+            assertEquals(tile,
+                    ((RandomTileFusion) fusion.copy()).selectTile(region));
+
+            counts[tile]++;
+        }
+
+        for (final int count : counts) {
+            assertTrue(count > 50);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package mpicbg.stitching.stitching.fusion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RegionDecomposition} class.
+ */
+public class RegionDecompositionTest {
+
+    /**
+     * Decomposes randomly placed tiles and verifies, pixel by pixel, that the
+     * result does not overlap and that every pixel carries exactly the classes
+     * of the tiles covering it.
+     */
+    @Test
+    public void testRandomLayouts() {
+        final Random rnd = new Random(42);
+
+        for (int run = 0; run < 20; run++) {
+            final List<ClassifiedRegion> tiles =
+                    new ArrayList<ClassifiedRegion>();
+            final int numTiles = 2 + rnd.nextInt(15);
+
+            for (int i = 0; i < numTiles; i++) {
+                final int x = rnd.nextInt(40);
+                final int y = rnd.nextInt(40);
+                final ClassifiedRegion tile =
+                        new ClassifiedRegion(new Interval(x, x
+                                + rnd.nextInt(20)), new Interval(y, y
+                                + rnd.nextInt(20)));
+                tile.addClass(i);
+                tiles.add(tile);
+            }
+
+            verifyDecomposition(tiles, RegionDecomposition.decompose(tiles),
+                    60, 60);
+        }
+    }
+
+    /**
+     * A single tile must come back unchanged.
+     */
+    @Test
+    public void testSingleTile() {
+        final ClassifiedRegion tile =
+                new ClassifiedRegion(new Interval(0, 99), new Interval(0, 49),
+                        new Interval(0, 9));
+        tile.addClass(0);
+
+        final List<ClassifiedRegion> regions =
+                RegionDecomposition.decompose(Arrays.asList(tile));
+
+        assertEquals(1, regions.size());
+        assertTrue(regions.get(0).equalsRegion(tile));
+        assertTrue(Arrays.equals(new int[] { 0 }, regions.get(0).classArray()));
+    }
+
+    /**
+     * Decomposes regular grids with 10% overlap from 100 up to 50,000 tiles.
+     * A grid of n x n tiles has to come back as the (2n - 1)^2 regions
+     * between the tile borders: n^2 covered by a single tile, 2n(n - 1)
+     * overlaps of two tiles and (n - 1)^2 corners covered by four tiles.
+     */
+    @Test
+    public void testScaling() {
+        final int tileSize = 100;
+        final int step = 90;
+        final int[] gridSizes = { 10, 32, 71, 224 };
+
+        final List<ClassifiedRegion> small = grid(4, 10, 9);
+        verifyDecomposition(small, RegionDecomposition.decompose(small), 40,
+                40);
+
+        for (final int n : gridSizes) {
+            final List<ClassifiedRegion> regions =
+                    RegionDecomposition.decompose(grid(n, tileSize, step));
+
+            long area = 0;
+            final int[] numRegions = new int[5];
+            for (final ClassifiedRegion r : regions) {
+                area += area(r);
+                ++numRegions[r.classArray().length];
+            }
+
+            final long side = (long) (n - 1) * step + tileSize;
+            assertEquals(side * side, area);
+            assertEquals((2 * n - 1) * (2 * n - 1), regions.size());
+            assertEquals(n * n, numRegions[1]);
+            assertEquals(2 * n * (n - 1), numRegions[2]);
+            assertEquals((n - 1) * (n - 1), numRegions[4]);
+        }
+    }
+
+    private static List<ClassifiedRegion> grid(final int n, final int tileSize,
+            final int step) {
+        final List<ClassifiedRegion> tiles = new ArrayList<ClassifiedRegion>();
+
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                final ClassifiedRegion tile =
+                        new ClassifiedRegion(new Interval(x * step, x * step
+                                + tileSize - 1), new Interval(y * step, y
+                                * step + tileSize - 1));
+                tile.addClass(tiles.size());
+                tiles.add(tile);
+            }
+        }
+
+        return tiles;
+    }
+
+    private static long area(final ClassifiedRegion r) {
+        long area = 1;
+        for (int d = 0; d < r.size(); d++) {
+            area *= r.get(d).max() - r.get(d).min() + 1;
+        }
+        return area;
+    }
+
+    private static void verifyDecomposition(
+            final List<ClassifiedRegion> tiles,
+            final List<ClassifiedRegion> regions, final int width,
+            final int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final boolean[] expected = new boolean[tiles.size()];
+                boolean covered = false;
+                for (int i = 0; i < tiles.size(); i++) {
+                    expected[i] = contains(tiles.get(i), x, y);
+                    covered |= expected[i];
+                }
+
+                ClassifiedRegion match = null;
+                for (final ClassifiedRegion r : regions) {
+                    if (contains(r, x, y)) {
+                        assertTrue("regions overlap at " + x + "," + y,
+                                match == null);
+                        match = r;
+                    }
+                }
+
+                if (!covered) {
+                    assertTrue(match == null);
+                    continue;
+                }
+
+                assertFalse("pixel not covered " + x + "," + y, match == null);
+
+                final boolean[] actual = new boolean[tiles.size()];
+                for (final int c : match.classArray()) {
+                    actual[c] = true;
+                }
+                assertTrue("wrong classes at " + x + "," + y,
+                        Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    private static boolean contains(final ClassifiedRegion r, final int x,
+            final int y) {
+        return r.get(0).contains(x) == 0 && r.get(1).contains(y) == 0;
+    }
+}
@@ -0,0 +1,50 @@
+package mpicbg.stitching.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class LocalMaximaTest {
+
+    @Test
+    public void findsHighestMaxima2d() {
+        final int[] size = new int[] { 5, 4 };
+        final float[] data = new float[20];
+        data[0] = 3; // corner
+        data[7] = 9; // (2, 1)
+        data[8] = 4; // neighbour of (2, 1), no maximum
+        data[19] = 5; // corner
+        data[15] = 1; // (0, 3)
+
+        assertArrayEquals(new int[] { 7, 19, 0 },
+                LocalMaxima.find(data, size, 3));
+        assertArrayEquals(new int[] { 7, 19, 0, 15 },
+                LocalMaxima.find(data, size, 10));
+    }
+
+    @Test
+    public void reportsPlateauOnce() {
+        final float[] data = new float[] { 0, 2, 2, 2, 0, 1 };
+
+        assertArrayEquals(new int[] { 3, 5 },
+                LocalMaxima.find(data, new int[] { 6 }, 5));
+    }
+
+    @Test
+    public void findsMaximum3d() {
+        final int[] size = new int[] { 3, 3, 3 };
+        final float[] data = new float[27];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = 1;
+        }
+        data[13] = 2; // center
+
+        assertArrayEquals(new int[] { 13 },
+                LocalMaxima.find(data, size, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPeaks() {
+        LocalMaxima.find(new float[1], new int[] { 1 }, 0);
+    }
+}